@@ -1839,10 +1839,10 @@ static void gattServerDeleteServiceNative(JNIEnv* env, jobject object,
   sGattIf->server->delete_service(server_if, svc_handle);
 }
 
-static void gattServerSendIndicationNative(JNIEnv* env, jobject object,
-                                           jint server_if, jint attr_handle,
-                                           jint conn_id, jbyteArray val) {
-  if (!sGattIf) return;
+static jboolean gattServerSendIndicationNative(JNIEnv* env, jobject object,
+                                               jint server_if, jint attr_handle,
+                                               jint conn_id, jbyteArray val) {
+  if (!sGattIf) return JNI_FALSE;
 
   jbyte* array = env->GetByteArrayElements(val, 0);
   int val_len = env->GetArrayLength(val);
@@ -1850,14 +1850,15 @@ static void gattServerSendIndicationNative(JNIEnv* env, jobject object,
   std::vector<uint8_t> vect_val((uint8_t*)array, (uint8_t*)array + val_len);
   env->ReleaseByteArrayElements(val, array, JNI_ABORT);
 
-  sGattIf->server->send_indication(server_if, attr_handle, conn_id,
-                                   /*confirm*/ 1, std::move(vect_val));
+  bt_status_t status = sGattIf->server->send_indication(
+      server_if, attr_handle, conn_id, /*confirm*/ 1, std::move(vect_val));
+  return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
-static void gattServerSendNotificationNative(JNIEnv* env, jobject object,
-                                             jint server_if, jint attr_handle,
-                                             jint conn_id, jbyteArray val) {
-  if (!sGattIf) return;
+static jboolean gattServerSendNotificationNative(JNIEnv* env, jobject object,
+                                                 jint server_if, jint attr_handle,
+                                                 jint conn_id, jbyteArray val) {
+  if (!sGattIf) return JNI_FALSE;
 
   jbyte* array = env->GetByteArrayElements(val, 0);
   int val_len = env->GetArrayLength(val);
@@ -1865,8 +1866,9 @@ static void gattServerSendNotificationNative(JNIEnv* env, jobject object,
   std::vector<uint8_t> vect_val((uint8_t*)array, (uint8_t*)array + val_len);
   env->ReleaseByteArrayElements(val, array, JNI_ABORT);
 
-  sGattIf->server->send_indication(server_if, attr_handle, conn_id,
-                                   /*confirm*/ 0, std::move(vect_val));
+  bt_status_t status = sGattIf->server->send_indication(
+      server_if, attr_handle, conn_id, /*confirm*/ 0, std::move(vect_val));
+  return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
 static void gattServerSendResponseNative(JNIEnv* env, jobject object,
@@ -2479,9 +2481,9 @@ static JNINativeMethod sMethods[] = {
      (void*)gattServerStopServiceNative},
     {"gattServerDeleteServiceNative", "(II)V",
      (void*)gattServerDeleteServiceNative},
-    {"gattServerSendIndicationNative", "(III[B)V",
+    {"gattServerSendIndicationNative", "(III[B)Z",
      (void*)gattServerSendIndicationNative},
-    {"gattServerSendNotificationNative", "(III[B)V",
+    {"gattServerSendNotificationNative", "(III[B)Z",
      (void*)gattServerSendNotificationNative},
     {"gattServerSendResponseNative", "(IIIIII[BI)V",
      (void*)gattServerSendResponseNative},
@@ -91,7 +91,6 @@ import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.BluetoothStatsLog;
@@ -140,6 +139,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
@@ -151,17 +155,12 @@ public class AdapterService extends Service {
     private static final int MIN_OFFLOADED_FILTERS = 10;
     private static final int MIN_OFFLOADED_SCAN_STORAGE_BYTES = 1024;
 
-    private final Object mEnergyInfoLock = new Object();
-    private int mStackReportedState;
-    private long mTxTimeTotalMs;
-    private long mRxTimeTotalMs;
-    private long mIdleTimeTotalMs;
-    private long mEnergyUsedTotalVoltAmpSecMicro;
-    private final SparseArray<UidTraffic> mUidTraffic = new SparseArray<>();
+    private ControllerActivityCollector mActivityCollector;
 
     private final ArrayList<String> mStartedProfiles = new ArrayList<>();
     private final ArrayList<ProfileService> mRegisteredProfiles = new ArrayList<>();
     private final ArrayList<ProfileService> mRunningProfiles = new ArrayList<>();
+    private final ProfileStartupTimer mProfileStartupTimer = new ProfileStartupTimer();
 
     public static final String ACTION_LOAD_ADAPTER_PROPERTIES =
             "com.android.bluetooth.btservice.action.LOAD_ADAPTER_PROPERTIES";
@@ -399,6 +398,8 @@ public class AdapterService extends Service {
                         return;
                     }
                     mRunningProfiles.add(profile);
+                    mProfileStartupTimer.onStarted(profile.getClass(),
+                            SystemClock.elapsedRealtime());
                     if (GattService.class.getSimpleName().equals(profile.getName())) {
                         enableNative();
                     } else if (mRegisteredProfiles.size() == Config.getSupportedProfiles().length
@@ -423,6 +424,8 @@ public class AdapterService extends Service {
                         return;
                     }
                     mRunningProfiles.remove(profile);
+                    mProfileStartupTimer.onStopped(profile.getClass(),
+                            SystemClock.elapsedRealtime());
                     // If only GATT is left, send BREDR_STOPPED.
                     if ((mRunningProfiles.size() == 1 && (GattService.class.getSimpleName()
                             .equals(mRunningProfiles.get(0).getName())))) {
@@ -510,6 +513,8 @@ public class AdapterService extends Service {
         mAdapterProperties = new AdapterProperties(this);
         mAdapterStateMachine = AdapterState.make(this);
         mJniCallbacks = new JniCallbacks(this, mAdapterProperties);
+        mActivityCollector = new ControllerActivityCollector(mHandler, () -> readEnergyInfo(),
+                CONTROLLER_ENERGY_UPDATE_TIMEOUT_MILLIS);
         mBluetoothKeystoreService = new BluetoothKeystoreService(isCommonCriteriaMode());
         mBluetoothKeystoreService.start();
         mActivityAttributionService = new ActivityAttributionService();
@@ -955,10 +960,21 @@ public class AdapterService extends Service {
     }
 
     private void setAllProfileServiceStates(Class[] services, int state) {
+        ArrayList<Class> profiles = new ArrayList<>(services.length);
         for (Class service : services) {
             if (GattService.class.getSimpleName().equals(service.getSimpleName())) {
                 continue;
             }
+            profiles.add(service);
+        }
+        Class[] profileServices = profiles.toArray(new Class[0]);
+        long now = SystemClock.elapsedRealtime();
+        if (state == BluetoothAdapter.STATE_ON) {
+            mProfileStartupTimer.onStartRequested(profileServices, now);
+        } else {
+            mProfileStartupTimer.onStopRequested(profileServices, now);
+        }
+        for (Class service : profileServices) {
             setProfileServiceState(service, state);
         }
     }
@@ -2510,9 +2526,21 @@ public class AdapterService extends Service {
 
         @Override
         public void requestActivityInfo(ResultReceiver result, AttributionSource source) {
+            AdapterService service = getService();
+            if (service == null
+                    || !Utils.checkConnectPermissionForDataDelivery(service, source, TAG)) {
+                sendActivityInfo(result, null);
+                return;
+            }
+
+            enforceBluetoothPrivilegedPermission(service);
+
+            service.requestActivityInfo(info -> sendActivityInfo(result, info));
+        }
+
+        private void sendActivityInfo(ResultReceiver result, BluetoothActivityEnergyInfo info) {
             Bundle bundle = new Bundle();
-            bundle.putParcelable(BatteryStats.RESULT_RECEIVER_CONTROLLER_KEY,
-                    reportActivityInfo(source));
+            bundle.putParcelable(BatteryStats.RESULT_RECEIVER_CONTROLLER_KEY, info);
             result.send(0, bundle);
         }
 
@@ -3283,50 +3311,30 @@ public class AdapterService extends Service {
     }
 
     private BluetoothActivityEnergyInfo reportActivityInfo() {
-        if (mAdapterProperties.getState() != BluetoothAdapter.STATE_ON
-                || !mAdapterProperties.isActivityAndEnergyReportingSupported()) {
+        CompletableFuture<BluetoothActivityEnergyInfo> future = new CompletableFuture<>();
+        requestActivityInfo(future::complete);
+        try {
+            // The collector answers after CONTROLLER_ENERGY_UPDATE_TIMEOUT_MILLIS at the latest,
+            // unless its handler is busy.
+            return future.get(2 * CONTROLLER_ENERGY_UPDATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Log.w(TAG, "reportActivityInfo: no energy info", e);
             return null;
         }
+    }
 
-        // Pull the data. The callback will notify mEnergyInfoLock.
-        readEnergyInfo();
-
-        synchronized (mEnergyInfoLock) {
-            try {
-                mEnergyInfoLock.wait(CONTROLLER_ENERGY_UPDATE_TIMEOUT_MILLIS);
-            } catch (InterruptedException e) {
-                // Just continue, the energy data may be stale but we won't miss anything next time
-                // we query.
-            }
-
-            final BluetoothActivityEnergyInfo info =
-                    new BluetoothActivityEnergyInfo(SystemClock.elapsedRealtime(),
-                            mStackReportedState, mTxTimeTotalMs, mRxTimeTotalMs, mIdleTimeTotalMs,
-                            mEnergyUsedTotalVoltAmpSecMicro);
-
-            // Count the number of entries that have byte counts > 0
-            int arrayLen = 0;
-            for (int i = 0; i < mUidTraffic.size(); i++) {
-                final UidTraffic traffic = mUidTraffic.valueAt(i);
-                if (traffic.getTxBytes() != 0 || traffic.getRxBytes() != 0) {
-                    arrayLen++;
-                }
-            }
-
-            // Copy the traffic objects whose byte counts are > 0
-            final UidTraffic[] result = arrayLen > 0 ? new UidTraffic[arrayLen] : null;
-            int putIdx = 0;
-            for (int i = 0; i < mUidTraffic.size(); i++) {
-                final UidTraffic traffic = mUidTraffic.valueAt(i);
-                if (traffic.getTxBytes() != 0 || traffic.getRxBytes() != 0) {
-                    result[putIdx++] = traffic.clone();
-                }
-            }
-
-            info.setUidTraffic(result);
-
-            return info;
+    /**
+     * Requests the controller activity and energy info. The callback is invoked with null if
+     * the adapter is off or does not support activity and energy reporting.
+     */
+    void requestActivityInfo(Consumer<BluetoothActivityEnergyInfo> callback) {
+        if (mAdapterProperties.getState() != BluetoothAdapter.STATE_ON
+                || !mAdapterProperties.isActivityAndEnergyReportingSupported()) {
+            callback.accept(null);
+            return;
         }
+
+        mActivityCollector.request(getActivityInfoMaxAgeMillis(), callback);
     }
 
     public int getTotalNumOfTrackableAdvertisements() {
@@ -3439,43 +3447,8 @@ public class AdapterService extends Service {
                 }
             }
 
-            synchronized (mEnergyInfoLock) {
-                mStackReportedState = ctrlState;
-                long totalTxTimeMs;
-                long totalRxTimeMs;
-                long totalIdleTimeMs;
-                long totalEnergy;
-                try {
-                    totalTxTimeMs = Math.addExact(mTxTimeTotalMs, txTime);
-                    totalRxTimeMs = Math.addExact(mRxTimeTotalMs, rxTime);
-                    totalIdleTimeMs = Math.addExact(mIdleTimeTotalMs, idleTime);
-                    totalEnergy = Math.addExact(mEnergyUsedTotalVoltAmpSecMicro, energyUsed);
-                } catch (ArithmeticException e) {
-                    // This could be because we accumulated a lot of time, or we got a very strange
-                    // value from the controller (more likely). Discard this data.
-                    Log.wtf(TAG, "overflow in bluetooth energy callback", e);
-                    totalTxTimeMs = mTxTimeTotalMs;
-                    totalRxTimeMs = mRxTimeTotalMs;
-                    totalIdleTimeMs = mIdleTimeTotalMs;
-                    totalEnergy = mEnergyUsedTotalVoltAmpSecMicro;
-                }
-
-                mTxTimeTotalMs = totalTxTimeMs;
-                mRxTimeTotalMs = totalRxTimeMs;
-                mIdleTimeTotalMs = totalIdleTimeMs;
-                mEnergyUsedTotalVoltAmpSecMicro = totalEnergy;
-
-                for (UidTraffic traffic : data) {
-                    UidTraffic existingTraffic = mUidTraffic.get(traffic.getUid());
-                    if (existingTraffic == null) {
-                        mUidTraffic.put(traffic.getUid(), traffic);
-                    } else {
-                        existingTraffic.addRxBytes(traffic.getRxBytes());
-                        existingTraffic.addTxBytes(traffic.getTxBytes());
-                    }
-                }
-                mEnergyInfoLock.notifyAll();
-            }
+            mActivityCollector.onEnergyInfo(ctrlState, txTime, rxTime, idleTime, energyUsed,
+                    data);
         }
 
         verboseLog("energyInfoCallback() status = " + status + "txTime = " + txTime + "rxTime = "
@@ -3548,7 +3521,13 @@ public class AdapterService extends Service {
         writer.println();
         mAdapterStateMachine.dump(fd, writer, args);
 
+        writer.println();
+        mRemoteDevices.dump(fd, writer, args);
+
         StringBuilder sb = new StringBuilder();
+        sb.append("\n");
+        mProfileStartupTimer.dump(sb);
+        mActivityCollector.dump(sb);
         for (ProfileService profile : mRegisteredProfiles) {
             profile.dump(sb);
         }
@@ -3751,6 +3730,21 @@ public class AdapterService extends Service {
     private long mScanQuotaWindowMillis = DeviceConfigListener.DEFAULT_SCAN_QUOTA_WINDOW_MILLIS;
     @GuardedBy("mDeviceConfigLock")
     private long mScanTimeoutMillis = DeviceConfigListener.DEFAULT_SCAN_TIMEOUT_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private long mDiscoveryResultWindowMillis =
+            DeviceConfigListener.DEFAULT_DISCOVERY_RESULT_WINDOW_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private int mDiscoveryResultRssiThreshold =
+            DeviceConfigListener.DEFAULT_DISCOVERY_RESULT_RSSI_THRESHOLD;
+    @GuardedBy("mDeviceConfigLock")
+    private int mDiscoveryResultPackageBudget =
+            DeviceConfigListener.DEFAULT_DISCOVERY_RESULT_PACKAGE_BUDGET;
+    @GuardedBy("mDeviceConfigLock")
+    private long mActivityInfoMaxAgeMillis =
+            DeviceConfigListener.DEFAULT_ACTIVITY_INFO_MAX_AGE_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private long mHfpIndicatorMinIntervalMillis =
+            DeviceConfigListener.DEFAULT_HFP_INDICATOR_MIN_INTERVAL_MILLIS;
 
     public @NonNull Predicate<String> getLocationDenylistName() {
         synchronized (mDeviceConfigLock) {
@@ -3788,6 +3782,40 @@ public class AdapterService extends Service {
         }
     }
 
+    /**
+     * Returns the window within which repeated discovery results of a device are coalesced,
+     * 0 if every result is broadcast.
+     */
+    public long getDiscoveryResultWindowMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mDiscoveryResultWindowMillis;
+        }
+    }
+
+    public int getDiscoveryResultRssiThreshold() {
+        synchronized (mDeviceConfigLock) {
+            return mDiscoveryResultRssiThreshold;
+        }
+    }
+
+    public int getDiscoveryResultPackageBudget() {
+        synchronized (mDeviceConfigLock) {
+            return mDiscoveryResultPackageBudget;
+        }
+    }
+
+    public long getActivityInfoMaxAgeMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mActivityInfoMaxAgeMillis;
+        }
+    }
+
+    public long getHfpIndicatorMinIntervalMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mHfpIndicatorMinIntervalMillis;
+        }
+    }
+
     private final DeviceConfigListener mDeviceConfigListener = new DeviceConfigListener();
 
     private class DeviceConfigListener implements DeviceConfig.OnPropertiesChangedListener {
@@ -3803,6 +3831,16 @@ public class AdapterService extends Service {
                 "scan_quota_window_millis";
         private static final String SCAN_TIMEOUT_MILLIS =
                 "scan_timeout_millis";
+        private static final String DISCOVERY_RESULT_WINDOW_MILLIS =
+                "discovery_result_window_millis";
+        private static final String DISCOVERY_RESULT_RSSI_THRESHOLD =
+                "discovery_result_rssi_threshold";
+        private static final String DISCOVERY_RESULT_PACKAGE_BUDGET =
+                "discovery_result_package_budget";
+        private static final String ACTIVITY_INFO_MAX_AGE_MILLIS =
+                "activity_info_max_age_millis";
+        private static final String HFP_INDICATOR_MIN_INTERVAL_MILLIS =
+                "hfp_indicator_min_interval_millis";
 
         /**
          * Default denylist which matches Eddystone and iBeacon payloads.
@@ -3813,6 +3851,11 @@ public class AdapterService extends Service {
         private static final int DEFAULT_SCAN_QUOTA_COUNT = 5;
         private static final long DEFAULT_SCAN_QUOTA_WINDOW_MILLIS = 30 * SECOND_IN_MILLIS;
         private static final long DEFAULT_SCAN_TIMEOUT_MILLIS = 30 * MINUTE_IN_MILLIS;
+        private static final long DEFAULT_DISCOVERY_RESULT_WINDOW_MILLIS = 0;
+        private static final int DEFAULT_DISCOVERY_RESULT_RSSI_THRESHOLD = 6;
+        private static final int DEFAULT_DISCOVERY_RESULT_PACKAGE_BUDGET = 256;
+        private static final long DEFAULT_ACTIVITY_INFO_MAX_AGE_MILLIS = SECOND_IN_MILLIS;
+        private static final long DEFAULT_HFP_INDICATOR_MIN_INTERVAL_MILLIS = 0;
 
         public void start() {
             DeviceConfig.addOnPropertiesChangedListener(DeviceConfig.NAMESPACE_BLUETOOTH,
@@ -3838,6 +3881,17 @@ public class AdapterService extends Service {
                         DEFAULT_SCAN_QUOTA_WINDOW_MILLIS);
                 mScanTimeoutMillis = properties.getLong(SCAN_TIMEOUT_MILLIS,
                         DEFAULT_SCAN_TIMEOUT_MILLIS);
+                mDiscoveryResultWindowMillis = properties.getLong(DISCOVERY_RESULT_WINDOW_MILLIS,
+                        DEFAULT_DISCOVERY_RESULT_WINDOW_MILLIS);
+                mDiscoveryResultRssiThreshold = properties.getInt(
+                        DISCOVERY_RESULT_RSSI_THRESHOLD, DEFAULT_DISCOVERY_RESULT_RSSI_THRESHOLD);
+                mDiscoveryResultPackageBudget = properties.getInt(
+                        DISCOVERY_RESULT_PACKAGE_BUDGET, DEFAULT_DISCOVERY_RESULT_PACKAGE_BUDGET);
+                mActivityInfoMaxAgeMillis = properties.getLong(ACTIVITY_INFO_MAX_AGE_MILLIS,
+                        DEFAULT_ACTIVITY_INFO_MAX_AGE_MILLIS);
+                mHfpIndicatorMinIntervalMillis = properties.getLong(
+                        HFP_INDICATOR_MIN_INTERVAL_MILLIS,
+                        DEFAULT_HFP_INDICATOR_MIN_INTERVAL_MILLIS);
             }
         }
     }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothActivityEnergyInfo;
+import android.bluetooth.UidTraffic;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Accumulates the activity and energy reports of the controller and answers requests for
+ * them asynchronously.
+ *
+ * Requests made while a controller read is in flight wait for that read instead of issuing
+ * another one, and requests within the freshness window are answered with the last report.
+ * If the controller does not answer within the timeout, the waiting requests get the totals
+ * accumulated so far.
+ */
+class ControllerActivityCollector {
+    private static final String TAG = "BluetoothActivityCollector";
+
+    private final Handler mHandler;
+    private final Runnable mReader;
+    private final long mTimeoutMillis;
+
+    private final Object mLock = new Object();
+    private int mStackReportedState;
+    private long mTxTimeTotalMs;
+    private long mRxTimeTotalMs;
+    private long mIdleTimeTotalMs;
+    private long mEnergyUsedTotalVoltAmpSecMicro;
+    private final SparseArray<UidTraffic> mUidTraffic = new SparseArray<>();
+    // Copies of the entries of mUidTraffic with traffic, null when none has.
+    private UidTraffic[] mUidTrafficSnapshot = null;
+    private BluetoothActivityEnergyInfo mLastInfo = null;
+    private long mLastInfoMillis = 0;
+    private final List<Consumer<BluetoothActivityEnergyInfo>> mPendingCallbacks =
+            new ArrayList<>();
+    private boolean mReadPending = false;
+    private int mReadSequence = 0;
+
+    private long mRequests = 0;
+    private long mCachedAnswers = 0;
+    private long mCoalescedRequests = 0;
+    private long mControllerReads = 0;
+    private long mTimeouts = 0;
+
+    /**
+     * @param handler handler running the read timeouts
+     * @param reader asks the controller for a report, answered by {@link #onEnergyInfo}
+     * @param timeoutMillis how long to wait for the controller
+     */
+    ControllerActivityCollector(Handler handler, Runnable reader, long timeoutMillis) {
+        mHandler = handler;
+        mReader = reader;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Requests the activity and energy totals. The callback may be invoked on the calling
+     * thread, on the thread reporting the controller data or on the handler thread.
+     *
+     * @param maxAgeMillis age up to which the last report is returned without reading the
+     *     controller again, 0 to always read it
+     */
+    void request(long maxAgeMillis, Consumer<BluetoothActivityEnergyInfo> callback) {
+        BluetoothActivityEnergyInfo info = null;
+        int readSequence = -1;
+        synchronized (mLock) {
+            mRequests++;
+            if (mLastInfo != null && maxAgeMillis > 0
+                    && SystemClock.elapsedRealtime() - mLastInfoMillis <= maxAgeMillis) {
+                mCachedAnswers++;
+                info = mLastInfo;
+            } else {
+                mPendingCallbacks.add(callback);
+                if (mReadPending) {
+                    mCoalescedRequests++;
+                    return;
+                }
+                mReadPending = true;
+                mControllerReads++;
+                readSequence = ++mReadSequence;
+            }
+        }
+        if (readSequence < 0) {
+            callback.accept(info);
+            return;
+        }
+        final int sequence = readSequence;
+        mHandler.postDelayed(() -> onReadTimeout(sequence), mTimeoutMillis);
+        mReader.run();
+    }
+
+    /**
+     * Adds a report of the controller to the totals and answers the waiting requests.
+     */
+    void onEnergyInfo(int ctrlState, long txTime, long rxTime, long idleTime, long energyUsed,
+            UidTraffic[] data) {
+        List<Consumer<BluetoothActivityEnergyInfo>> callbacks;
+        BluetoothActivityEnergyInfo info;
+        synchronized (mLock) {
+            mStackReportedState = ctrlState;
+            try {
+                long totalTxTimeMs = Math.addExact(mTxTimeTotalMs, txTime);
+                long totalRxTimeMs = Math.addExact(mRxTimeTotalMs, rxTime);
+                long totalIdleTimeMs = Math.addExact(mIdleTimeTotalMs, idleTime);
+                long totalEnergy = Math.addExact(mEnergyUsedTotalVoltAmpSecMicro, energyUsed);
+                mTxTimeTotalMs = totalTxTimeMs;
+                mRxTimeTotalMs = totalRxTimeMs;
+                mIdleTimeTotalMs = totalIdleTimeMs;
+                mEnergyUsedTotalVoltAmpSecMicro = totalEnergy;
+            } catch (ArithmeticException e) {
+                // This could be because we accumulated a lot of time, or we got a very strange
+                // value from the controller (more likely). Discard this data.
+                Log.wtf(TAG, "overflow in bluetooth energy callback", e);
+            }
+            if (data != null) {
+                addUidTrafficLocked(data);
+            }
+            info = buildInfoLocked();
+            mLastInfo = info;
+            mLastInfoMillis = info.getTimeStamp();
+            mReadPending = false;
+            callbacks = takePendingCallbacksLocked();
+        }
+        deliver(callbacks, info);
+    }
+
+    // Answers the waiting requests with the current totals if the read is still pending.
+    private void onReadTimeout(int readSequence) {
+        List<Consumer<BluetoothActivityEnergyInfo>> callbacks;
+        BluetoothActivityEnergyInfo info;
+        synchronized (mLock) {
+            if (!mReadPending || readSequence != mReadSequence) {
+                return;
+            }
+            mTimeouts++;
+            mReadPending = false;
+            // Not cached, the next request reads the controller again.
+            info = buildInfoLocked();
+            callbacks = takePendingCallbacksLocked();
+        }
+        deliver(callbacks, info);
+    }
+
+    // Adds the traffic of the report, copying only the entries it changed into a new snapshot.
+    private void addUidTrafficLocked(UidTraffic[] data) {
+        boolean changed = false;
+        for (UidTraffic traffic : data) {
+            if (traffic.getRxBytes() == 0 && traffic.getTxBytes() == 0) {
+                continue;
+            }
+            UidTraffic existingTraffic = mUidTraffic.get(traffic.getUid());
+            if (existingTraffic == null) {
+                mUidTraffic.put(traffic.getUid(), traffic);
+            } else {
+                existingTraffic.addRxBytes(traffic.getRxBytes());
+                existingTraffic.addTxBytes(traffic.getTxBytes());
+            }
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+        UidTraffic[] previous = mUidTrafficSnapshot;
+        UidTraffic[] snapshot = new UidTraffic[mUidTraffic.size()];
+        int previousIdx = 0;
+        for (int i = 0; i < mUidTraffic.size(); i++) {
+            final UidTraffic traffic = mUidTraffic.valueAt(i);
+            // Both are sorted by uid
+            while (previous != null && previousIdx < previous.length
+                    && previous[previousIdx].getUid() < traffic.getUid()) {
+                previousIdx++;
+            }
+            UidTraffic copy = null;
+            if (previous != null && previousIdx < previous.length) {
+                copy = previous[previousIdx];
+                if (copy.getUid() != traffic.getUid() || copy.getRxBytes() != traffic.getRxBytes()
+                        || copy.getTxBytes() != traffic.getTxBytes()) {
+                    copy = null;
+                }
+            }
+            snapshot[i] = copy != null ? copy : traffic.clone();
+        }
+        mUidTrafficSnapshot = snapshot;
+    }
+
+    private BluetoothActivityEnergyInfo buildInfoLocked() {
+        BluetoothActivityEnergyInfo info = new BluetoothActivityEnergyInfo(
+                SystemClock.elapsedRealtime(), mStackReportedState, mTxTimeTotalMs,
+                mRxTimeTotalMs, mIdleTimeTotalMs, mEnergyUsedTotalVoltAmpSecMicro);
+        info.setUidTraffic(mUidTrafficSnapshot);
+        return info;
+    }
+
+    private List<Consumer<BluetoothActivityEnergyInfo>> takePendingCallbacksLocked() {
+        if (mPendingCallbacks.isEmpty()) {
+            return null;
+        }
+        List<Consumer<BluetoothActivityEnergyInfo>> callbacks = new ArrayList<>(mPendingCallbacks);
+        mPendingCallbacks.clear();
+        return callbacks;
+    }
+
+    private static void deliver(List<Consumer<BluetoothActivityEnergyInfo>> callbacks,
+            BluetoothActivityEnergyInfo info) {
+        if (callbacks == null) {
+            return;
+        }
+        for (Consumer<BluetoothActivityEnergyInfo> callback : callbacks) {
+            callback.accept(info);
+        }
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            sb.append("Controller activity requests: " + mRequests + ", from cache: "
+                    + mCachedAnswers + ", coalesced: " + mCoalescedRequests
+                    + ", controller reads: " + mControllerReads + ", timeouts: " + mTimeouts
+                    + "\n");
+        }
+    }
+}
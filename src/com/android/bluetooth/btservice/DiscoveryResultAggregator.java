@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which inquiry results of a classic discovery are broadcast as
+ * {@link android.bluetooth.BluetoothDevice#ACTION_FOUND}.
+ *
+ * The stack reports a device again every time it answers an inquiry. A repeated report is only
+ * delivered if the name or class changed, if the RSSI moved by at least the threshold, or if
+ * the last delivery is older than the window. Each discovering package gets a budget of such
+ * updates per discovery; the first sighting of a device is always delivered.
+ *
+ * Aggregation is off unless a window is configured. Only the first {@link #MAX_TRACKED_DEVICES}
+ * devices of a discovery are tracked, every report of a further device is delivered as is.
+ */
+class DiscoveryResultAggregator {
+    static final int RESULT_SUPPRESSED = 0;
+    static final int RESULT_NEW = 1;
+    static final int RESULT_UPDATED = 2;
+
+    @VisibleForTesting
+    static final int MAX_TRACKED_DEVICES = 512;
+
+    private static class Entry {
+        public long lastDeliveredMillis;
+        public int rssi;
+        public String name;
+        public int bluetoothClass;
+    }
+
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    private final Map<String, Integer> mPackageUpdates = new HashMap<>();
+    private long mWindowMillis = 0;
+    private int mRssiThreshold = 0;
+    private int mPackageBudget = 0;
+
+    private long mDelivered = 0;
+    private long mSuppressedDuplicates = 0;
+    private long mSuppressedOverBudget = 0;
+
+    /**
+     * Forgets the devices and budgets of the previous discovery and applies the configuration
+     * for the next one.
+     *
+     * @param windowMillis repeated reports within this window are coalesced, 0 disables
+     *     aggregation
+     * @param rssiThreshold minimum RSSI change in dBm delivered within the window
+     * @param packageBudget maximum number of updates delivered to a package per discovery,
+     *     0 for no limit
+     */
+    synchronized void reset(long windowMillis, int rssiThreshold, int packageBudget) {
+        mEntries.clear();
+        mPackageUpdates.clear();
+        mWindowMillis = windowMillis;
+        mRssiThreshold = rssiThreshold;
+        mPackageBudget = packageBudget;
+    }
+
+    /**
+     * Classifies a report of the stack for the device with the given packed address.
+     *
+     * @return {@link #RESULT_NEW} for a device not delivered yet in this discovery,
+     *     {@link #RESULT_UPDATED} for a change worth delivering, {@link #RESULT_SUPPRESSED}
+     *     otherwise
+     */
+    synchronized int onDeviceFound(long key, int rssi, String name, int bluetoothClass,
+            long nowMillis) {
+        if (mWindowMillis <= 0) {
+            // Aggregation disabled, every report is delivered like a new device.
+            return RESULT_NEW;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            // Devices beyond the table are not coalesced.
+            if (mEntries.size() < MAX_TRACKED_DEVICES) {
+                entry = new Entry();
+                update(entry, rssi, name, bluetoothClass, nowMillis);
+                mEntries.put(key, entry);
+            }
+            return RESULT_NEW;
+        }
+        boolean changed = entry.bluetoothClass != bluetoothClass
+                || (name != null && !name.equals(entry.name))
+                || Math.abs(rssi - entry.rssi) >= mRssiThreshold
+                || nowMillis - entry.lastDeliveredMillis >= mWindowMillis;
+        if (!changed) {
+            mSuppressedDuplicates++;
+            return RESULT_SUPPRESSED;
+        }
+        update(entry, rssi, name, bluetoothClass, nowMillis);
+        return RESULT_UPDATED;
+    }
+
+    /**
+     * Charges a delivery of the given result to the package.
+     *
+     * @return false if the package ran out of budget and the result must not be delivered
+     */
+    synchronized boolean tryDeliver(String packageName, int result) {
+        if (result == RESULT_UPDATED && mPackageBudget > 0) {
+            Integer updates = mPackageUpdates.get(packageName);
+            int count = updates == null ? 0 : updates;
+            if (count >= mPackageBudget) {
+                mSuppressedOverBudget++;
+                return false;
+            }
+            mPackageUpdates.put(packageName, count + 1);
+        }
+        mDelivered++;
+        return true;
+    }
+
+    // Records the report as the last delivered state of the device.
+    private static void update(Entry entry, int rssi, String name, int bluetoothClass,
+            long nowMillis) {
+        entry.lastDeliveredMillis = nowMillis;
+        entry.rssi = rssi;
+        if (name != null) {
+            entry.name = name;
+        }
+        entry.bluetoothClass = bluetoothClass;
+    }
+
+    synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    synchronized long getSuppressedCount() {
+        return mSuppressedDuplicates + mSuppressedOverBudget;
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Discovery results delivered: " + mDelivered
+                + ", suppressed duplicates: " + mSuppressedDuplicates
+                + ", suppressed over budget: " + mSuppressedOverBudget + "\n");
+        sb.append("  Window: " + mWindowMillis + " ms, RSSI threshold: " + mRssiThreshold
+                + " dBm, package budget: " + mPackageBudget
+                + ", tracked devices: " + mEntries.size() + "\n");
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each profile service takes to start and stop, and how long it takes to
+ * bring all of them up or down.
+ */
+class ProfileStartupTimer {
+    private static class Profile {
+        public final Class service;
+        public boolean running = false;
+        public long requestMillis;
+        public long startDurationMillis = -1;
+        public long stopDurationMillis = -1;
+
+        Profile(Class service) {
+            this.service = service;
+        }
+    }
+
+    // Profile services of the last start request.
+    private Map<Class, Profile> mProfiles = new LinkedHashMap<>();
+    private long mStartRequestMillis = -1;
+    private long mStopRequestMillis = -1;
+    private long mLastStartupMillis = -1;
+    private long mLastShutdownMillis = -1;
+
+    /**
+     * Records that the given profile services are requested to start. The set of profile
+     * services is taken again on every start, as the supported profiles may change.
+     */
+    synchronized void onStartRequested(Class[] services, long nowMillis) {
+        Map<Class, Profile> profiles = new LinkedHashMap<>();
+        for (Class service : services) {
+            Profile profile = mProfiles.get(service);
+            if (profile == null) {
+                profile = new Profile(service);
+            }
+            profile.requestMillis = nowMillis;
+            profile.startDurationMillis = -1;
+            profiles.put(service, profile);
+        }
+        mProfiles = profiles;
+        mStartRequestMillis = nowMillis;
+        mLastStartupMillis = -1;
+    }
+
+    /**
+     * Records that the profile service is running.
+     */
+    synchronized void onStarted(Class service, long nowMillis) {
+        Profile profile = mProfiles.get(service);
+        if (profile == null || profile.running) {
+            return;
+        }
+        profile.running = true;
+        profile.startDurationMillis = nowMillis - profile.requestMillis;
+        if (getNumRunning() == mProfiles.size() && mStartRequestMillis >= 0) {
+            mLastStartupMillis = nowMillis - mStartRequestMillis;
+        }
+    }
+
+    /**
+     * Records that the given profile services are requested to stop.
+     */
+    synchronized void onStopRequested(Class[] services, long nowMillis) {
+        for (Class service : services) {
+            Profile profile = mProfiles.get(service);
+            if (profile != null) {
+                profile.requestMillis = nowMillis;
+                profile.stopDurationMillis = -1;
+            }
+        }
+        mStopRequestMillis = nowMillis;
+        mLastShutdownMillis = -1;
+        checkShutdownComplete(nowMillis);
+    }
+
+    /**
+     * Records that the profile service stopped.
+     */
+    synchronized void onStopped(Class service, long nowMillis) {
+        Profile profile = mProfiles.get(service);
+        if (profile == null || !profile.running) {
+            return;
+        }
+        profile.running = false;
+        profile.stopDurationMillis = nowMillis - profile.requestMillis;
+        checkShutdownComplete(nowMillis);
+    }
+
+    /**
+     * Returns how long the last start of all the profile services took, -1 if it did not
+     * complete.
+     */
+    synchronized long getLastStartupMillis() {
+        return mLastStartupMillis;
+    }
+
+    /**
+     * Returns how long the last stop of all the profile services took, -1 if it did not
+     * complete.
+     */
+    synchronized long getLastShutdownMillis() {
+        return mLastShutdownMillis;
+    }
+
+    private int getNumRunning() {
+        int numRunning = 0;
+        for (Profile profile : mProfiles.values()) {
+            if (profile.running) {
+                numRunning++;
+            }
+        }
+        return numRunning;
+    }
+
+    private void checkShutdownComplete(long nowMillis) {
+        if (getNumRunning() == 0 && mStopRequestMillis >= 0 && mLastShutdownMillis < 0) {
+            mLastShutdownMillis = nowMillis - mStopRequestMillis;
+        }
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("Profile services startup:\n");
+        sb.append("  Last start: " + mLastStartupMillis + " ms, last stop: "
+                + mLastShutdownMillis + " ms, running: " + getNumRunning() + "/"
+                + mProfiles.size() + "\n");
+        for (Profile profile : mProfiles.values()) {
+            sb.append("  " + profile.service.getSimpleName() + ": start "
+                    + profile.startDurationMillis + " ms, stop " + profile.stopDurationMillis
+                    + " ms\n");
+        }
+    }
+}
@@ -38,7 +38,9 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.R;
@@ -46,11 +48,10 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -69,8 +70,14 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private Queue<String> mDeviceQueue;
+    // Remote devices keyed by their address packed into a long, see addressToLong(). Also the
+    // lock of the LRU list threaded through the DeviceProperties.
+    private final LongSparseArray<DeviceProperties> mDevices;
+    // Most and least recently used devices.
+    private DeviceProperties mLruHead;
+    private DeviceProperties mLruTail;
+
+    private final DiscoveryResultAggregator mDiscoveryResults = new DiscoveryResultAggregator();
 
     private final Handler mHandler;
     private class RemoteDevicesHandler extends Handler {
@@ -142,8 +149,7 @@ final class RemoteDevices {
         sAdapter = BluetoothAdapter.getDefaultAdapter();
         sAdapterService = service;
         sSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new LongSparseArray<DeviceProperties>();
         mHandler = new RemoteDevicesHandler(looper);
     }
 
@@ -181,12 +187,21 @@ final class RemoteDevices {
         }
 
         if (mDevices != null) {
-            mDevices.clear();
+            synchronized (mDevices) {
+                mDevices.clear();
+                mLruHead = null;
+                mLruTail = null;
+            }
         }
+    }
 
-        if (mDeviceQueue != null) {
-            mDeviceQueue.clear();
-        }
+    /**
+     * Should be called when a discovery starts, so that every device found is reported again
+     */
+    void onDiscoveryStarted() {
+        mDiscoveryResults.reset(sAdapterService.getDiscoveryResultWindowMillis(),
+                sAdapterService.getDiscoveryResultRssiThreshold(),
+                sAdapterService.getDiscoveryResultPackageBudget());
     }
 
     @Override
@@ -195,45 +210,125 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            return mDevices.get(device.getAddress());
-        }
+        return getDeviceProperties(addressToLong(device.getAddress()));
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        DeviceProperties prop = mDevices.get(Utils.getAddressStringFromByte(address));
+        DeviceProperties prop = getDeviceProperties(addressToLong(address));
         if (prop == null) {
             return null;
         }
         return prop.getDevice();
     }
 
+    private DeviceProperties getDeviceProperties(long key) {
+        synchronized (mDevices) {
+            DeviceProperties prop = mDevices.get(key);
+            if (prop != null && prop != mLruHead) {
+                unlinkLru(prop);
+                linkLruFirst(prop);
+            }
+            return prop;
+        }
+    }
+
     @VisibleForTesting
     DeviceProperties addDeviceProperties(byte[] address) {
         synchronized (mDevices) {
             DeviceProperties prop = new DeviceProperties();
             prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
-            DeviceProperties pv = mDevices.put(key, prop);
-
-            if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : sAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+            prop.mKey = addressToLong(address);
+            DeviceProperties pv = mDevices.get(prop.mKey);
+            if (pv != null) {
+                unlinkLru(pv);
+            }
+            mDevices.put(prop.mKey, prop);
+            linkLruFirst(prop);
+
+            if (pv == null && mDevices.size() > MAX_DEVICE_QUEUE_SIZE) {
+                evictLeastRecentlyUsed();
             }
             return prop;
         }
     }
 
+    // Removes the least recently used device that is not bonded. Bonded devices are never
+    // evicted.
+    private void evictLeastRecentlyUsed() {
+        for (DeviceProperties prop = mLruTail; prop != null; prop = prop.mLruPrev) {
+            if (prop.getBondState() == BluetoothDevice.BOND_NONE) {
+                debugLog("Removing device " + prop.getDevice() + " from property map");
+                unlinkLru(prop);
+                mDevices.remove(prop.mKey);
+                return;
+            }
+        }
+    }
+
+    private void linkLruFirst(DeviceProperties prop) {
+        prop.mLruPrev = null;
+        prop.mLruNext = mLruHead;
+        if (mLruHead != null) {
+            mLruHead.mLruPrev = prop;
+        }
+        mLruHead = prop;
+        if (mLruTail == null) {
+            mLruTail = prop;
+        }
+    }
+
+    private void unlinkLru(DeviceProperties prop) {
+        if (prop.mLruPrev != null) {
+            prop.mLruPrev.mLruNext = prop.mLruNext;
+        } else {
+            mLruHead = prop.mLruNext;
+        }
+        if (prop.mLruNext != null) {
+            prop.mLruNext.mLruPrev = prop.mLruPrev;
+        } else {
+            mLruTail = prop.mLruPrev;
+        }
+        prop.mLruPrev = null;
+        prop.mLruNext = null;
+    }
+
+    /**
+     * Packs a 6 byte address into the low 48 bits of a long, -1 if the address is invalid.
+     */
+    @VisibleForTesting
+    static long addressToLong(byte[] address) {
+        if (address == null || address.length != 6) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 6; i++) {
+            key = (key << 8) | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Packs an address of the form "00:11:22:AA:BB:CC" into the low 48 bits of a long, -1 if
+     * the address is invalid.
+     */
+    @VisibleForTesting
+    static long addressToLong(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            key = (key << 8) | (high << 4) | low;
+        }
+        return key;
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -243,6 +338,10 @@ final class RemoteDevices {
         private BluetoothDevice mDevice;
         private boolean mIsBondingInitiatedLocally;
         private int mBatteryLevel = BluetoothDevice.BATTERY_LEVEL_UNKNOWN;
+        // Key in mDevices and links of the LRU list, guarded by mDevices.
+        private long mKey;
+        private DeviceProperties mLruPrev;
+        private DeviceProperties mLruNext;
         @VisibleForTesting int mBondState;
         @VisibleForTesting int mDeviceType;
         @VisibleForTesting ParcelUuid[] mUuids;
@@ -622,6 +721,12 @@ final class RemoteDevices {
             return;
         }
 
+        int result = mDiscoveryResults.onDeviceFound(addressToLong(address), deviceProp.mRssi,
+                deviceProp.mName, deviceProp.mBluetoothClass, SystemClock.elapsedRealtime());
+        if (result == DiscoveryResultAggregator.RESULT_SUPPRESSED) {
+            return;
+        }
+
         Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
         intent.putExtra(BluetoothDevice.EXTRA_CLASS,
@@ -637,6 +742,9 @@ final class RemoteDevices {
                         continue;
                     }
                 }
+                if (!mDiscoveryResults.tryDeliver(pkg.getPackageName(), result)) {
+                    continue;
+                }
 
                 intent.setPackage(pkg.getPackageName());
 
@@ -945,6 +1053,13 @@ final class RemoteDevices {
         return batteryLevel * 100 / (numberOfLevels - 1);
     }
 
+    void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StringBuilder sb = new StringBuilder();
+        mDiscoveryResults.dump(sb);
+        writer.println(TAG);
+        writer.print(sb.toString());
+    }
+
     private static void errorLog(String msg) {
         Log.e(TAG, msg);
     }
@@ -23,6 +23,7 @@ import android.security.keystore.KeyProperties;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothKeystoreProto;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.protobuf.ByteString;
@@ -30,8 +31,10 @@ import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
@@ -42,14 +45,19 @@ import java.security.NoSuchProviderException;
 import java.security.ProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -99,6 +107,11 @@ public class BluetoothKeystoreService {
 
     private static final int BUFFER_SIZE = 400 * 10;
 
+    private static final int MAX_DECRYPT_THREADS = 4;
+    private static final long COMPUTE_THREAD_KEEP_ALIVE_MILLIS = 1000;
+    // The key encryption file is rewritten when it holds more stale lines than this.
+    private static final int MIN_STALE_LINES_FOR_REWRITE = 64;
+
     private static final int CONFIG_COMPARE_INIT = 0b00;
     private static final int CONFIG_FILE_COMPARE_PASS = 0b01;
     private static final int CONFIG_BACKUP_COMPARE_PASS = 0b10;
@@ -106,12 +119,22 @@ public class BluetoothKeystoreService {
 
     BluetoothKeystoreNativeInterface mBluetoothKeystoreNativeInterface;
 
-    private ComputeDataThread mEncryptDataThread;
-    private ComputeDataThread mDecryptDataThread;
-    private Map<String, String> mNameEncryptKey = new HashMap<>();
-    private Map<String, String> mNameDecryptKey = new HashMap<>();
-    private BlockingQueue<String> mPendingDecryptKey = new LinkedBlockingQueue<>();
-    private BlockingQueue<String> mPendingEncryptKey = new LinkedBlockingQueue<>();
+    private final Object mComputeLock = new Object();
+    // A single thread, encryptions of a key must complete in order.
+    @GuardedBy("mComputeLock")
+    private ThreadPoolExecutor mEncryptExecutor;
+    @GuardedBy("mComputeLock")
+    private ThreadPoolExecutor mDecryptExecutor;
+    @GuardedBy("mComputeLock")
+    private int mPendingComputeCount = 0;
+    private Map<String, String> mNameEncryptKey = new ConcurrentHashMap<>();
+    private Map<String, String> mNameDecryptKey = new ConcurrentHashMap<>();
+    // Entries of the key encryption file as last written, null until it is written in full.
+    private Map<String, String> mPersistedEncryptKey = null;
+    private int mPersistedLineCount = 0;
+    // Cipher of each compute thread, initialized again for every operation.
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
+    private SecretKey mSecretKey = null;
     private final List<String> mEncryptKeyNameList = List.of("LinkKey", "LE_KEY_PENC", "LE_KEY_PID",
             "LE_KEY_LID", "LE_KEY_PCSRK", "LE_KEY_LENC", "LE_KEY_LCSRK");
 
@@ -122,7 +145,6 @@ public class BluetoothKeystoreService {
         debugLog("new BluetoothKeystoreService isCommonCriteriaMode: " + isCommonCriteriaMode);
         mIsCommonCriteriaMode = isCommonCriteriaMode;
         mCompareResult = CONFIG_COMPARE_INIT;
-        startThread();
     }
 
     /**
@@ -300,8 +322,7 @@ public class BluetoothKeystoreService {
     public void initJni() {
         debugLog("initJni()");
         // Need to make sure all keys are decrypted.
-        stopThread();
-        startThread();
+        waitForComputeDone();
         // Initialize native interface
         if (mBluetoothKeystoreNativeInterface != null) {
             mBluetoothKeystoreNativeInterface.init();
@@ -346,7 +367,7 @@ public class BluetoothKeystoreService {
      * Sets or removes the encryption key value.
      *
      * <p>If the value of decryptedString matches {@link #CONFIG_FILE_HASH} then
-     * read the hash file and decrypt the keys and place them into {@link mPendingEncryptKey}
+     * read the hash file and queue the hash for encryption
      * otherwise cleanup all data and remove the keys.
      *
      * @param prefixString key to use
@@ -370,7 +391,7 @@ public class BluetoothKeystoreService {
                         mNameDecryptKey.get(CONFIG_BACKUP_PREFIX))) {
                     infoLog("Since the hash is same with previous, don't need encrypt again.");
                 } else {
-                    mPendingEncryptKey.put(prefixString);
+                    computeAsync(prefixString, true);
                 }
                 saveEncryptedKey();
             }
@@ -383,7 +404,7 @@ public class BluetoothKeystoreService {
             mNameEncryptKey.remove(prefixString);
         } else {
             mNameDecryptKey.put(prefixString, decryptedString);
-            mPendingEncryptKey.put(prefixString);
+            computeAsync(prefixString, true);
         }
     }
 
@@ -400,6 +421,8 @@ public class BluetoothKeystoreService {
         Files.deleteIfExists(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH));
         Files.deleteIfExists(Paths.get(CONFIG_FILE_ENCRYPTION_PATH));
         Files.deleteIfExists(Paths.get(CONFIG_BACKUP_ENCRYPTION_PATH));
+        mPersistedEncryptKey = null;
+        mPersistedLineCount = 0;
     }
 
     /**
@@ -407,36 +430,100 @@ public class BluetoothKeystoreService {
      */
     @VisibleForTesting
     public void cleanupMemory() {
-        stopThread();
+        waitForComputeDone();
         mNameEncryptKey.clear();
         mNameDecryptKey.clear();
-        startThread();
     }
 
     /**
-     * Stop encrypt/decrypt thread.
+     * Wait for the pending encryptions and decryptions, then stop the compute threads. They
+     * are started again by the next encryption or decryption.
      */
     @VisibleForTesting
     public void stopThread() {
-        try {
-            if (mEncryptDataThread != null) {
-                mEncryptDataThread.setWaitQueueEmptyForStop();
-                mEncryptDataThread.join();
+        waitForComputeDone();
+        synchronized (mComputeLock) {
+            if (mEncryptExecutor != null) {
+                mEncryptExecutor.shutdown();
+                mEncryptExecutor = null;
             }
-            if (mDecryptDataThread != null) {
-                mDecryptDataThread.setWaitQueueEmptyForStop();
-                mDecryptDataThread.join();
+            if (mDecryptExecutor != null) {
+                mDecryptExecutor.shutdown();
+                mDecryptExecutor = null;
             }
-        } catch (InterruptedException e) {
-            reportBluetoothKeystoreException(e, "Interrupted while operating.");
         }
     }
 
-    private void startThread() {
-        mEncryptDataThread = new ComputeDataThread(true);
-        mDecryptDataThread = new ComputeDataThread(false);
-        mEncryptDataThread.start();
-        mDecryptDataThread.start();
+    private void waitForComputeDone() {
+        synchronized (mComputeLock) {
+            while (mPendingComputeCount > 0) {
+                try {
+                    mComputeLock.wait();
+                } catch (InterruptedException e) {
+                    reportBluetoothKeystoreException(e, "Interrupted while operating.");
+                    return;
+                }
+            }
+        }
+    }
+
+    // Encrypts or decrypts the key on a compute thread. Encryptions run one at a time in the
+    // order they are queued, decryptions run on a bounded pool.
+    private void computeAsync(String prefixString, boolean doEncrypt) {
+        synchronized (mComputeLock) {
+            ThreadPoolExecutor executor;
+            if (doEncrypt) {
+                if (mEncryptExecutor == null) {
+                    mEncryptExecutor = createExecutor(1);
+                }
+                executor = mEncryptExecutor;
+            } else {
+                if (mDecryptExecutor == null) {
+                    mDecryptExecutor = createExecutor(Math.min(MAX_DECRYPT_THREADS,
+                            Runtime.getRuntime().availableProcessors()));
+                }
+                executor = mDecryptExecutor;
+            }
+            mPendingComputeCount++;
+            executor.execute(() -> {
+                try {
+                    computeKey(prefixString, doEncrypt);
+                } finally {
+                    synchronized (mComputeLock) {
+                        mPendingComputeCount--;
+                        if (mPendingComputeCount == 0) {
+                            mComputeLock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                COMPUTE_THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        // Idle compute threads exit.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void computeKey(String prefixString, boolean doEncrypt) {
+        Map<String, String> sourceDataMap = doEncrypt ? mNameDecryptKey : mNameEncryptKey;
+        Map<String, String> targetDataMap = doEncrypt ? mNameEncryptKey : mNameDecryptKey;
+        String sourceData = sourceDataMap.get(prefixString);
+        if (sourceData == null) {
+            return;
+        }
+        String targetData = tryCompute(sourceData, doEncrypt);
+        if (targetData != null) {
+            targetDataMap.put(prefixString, targetData);
+        } else {
+            errorLog("Computing of Data failed with prefixString: " + prefixString
+                    + ", doEncrypt: " + doEncrypt);
+        }
     }
 
     /**
@@ -456,30 +543,70 @@ public class BluetoothKeystoreService {
      */
     @VisibleForTesting
     public void saveEncryptedKey() {
-        stopThread();
+        // Make sure all the pending keys are encrypted.
+        waitForComputeDone();
         List<String> configEncryptedLines = new LinkedList<>();
-        List<String> keyEncryptedLines = new LinkedList<>();
-        for (String key : mNameEncryptKey.keySet()) {
+        Map<String, String> encryptedKeys = new HashMap<>();
+        for (Map.Entry<String, String> entry : mNameEncryptKey.entrySet()) {
+            String key = entry.getKey();
             if (key.equals(CONFIG_FILE_PREFIX) || key.equals(CONFIG_BACKUP_PREFIX)) {
                 configEncryptedLines.add(getEncryptedKeyData(key));
             } else {
-                keyEncryptedLines.add(getEncryptedKeyData(key));
+                encryptedKeys.put(key, entry.getValue());
             }
         }
-        startThread();
 
         try {
             if (!configEncryptedLines.isEmpty()) {
                 Files.write(Paths.get(CONFIG_CHECKSUM_ENCRYPTION_PATH), configEncryptedLines);
             }
-            if (!keyEncryptedLines.isEmpty()) {
-                Files.write(Paths.get(CONFIG_FILE_ENCRYPTION_PATH), keyEncryptedLines);
-            }
+            writeKeyEncryptionFile(encryptedKeys);
         } catch (IOException e) {
             throw new RuntimeException("write encryption file fail");
         }
     }
 
+    // Appends the keys changed since the last write to the key encryption file, a removed key
+    // is appended with an empty value. The file is written in full the first time and when it
+    // holds too many stale lines.
+    private void writeKeyEncryptionFile(Map<String, String> encryptedKeys) throws IOException {
+        Path path = Paths.get(CONFIG_FILE_ENCRYPTION_PATH);
+        if (mPersistedEncryptKey != null && Files.exists(path)) {
+            List<String> changedLines = new ArrayList<>();
+            for (Map.Entry<String, String> entry : encryptedKeys.entrySet()) {
+                if (!entry.getValue().equals(mPersistedEncryptKey.get(entry.getKey()))) {
+                    changedLines.add(entry.getKey() + "-" + entry.getValue());
+                }
+            }
+            for (String key : mPersistedEncryptKey.keySet()) {
+                if (!encryptedKeys.containsKey(key)) {
+                    changedLines.add(key + "-");
+                }
+            }
+            if (changedLines.isEmpty()) {
+                return;
+            }
+            int lineCount = mPersistedLineCount + changedLines.size();
+            if (lineCount - encryptedKeys.size() <= MIN_STALE_LINES_FOR_REWRITE
+                    || lineCount <= 2 * encryptedKeys.size()) {
+                Files.write(path, changedLines, StandardOpenOption.APPEND);
+                mPersistedEncryptKey = encryptedKeys;
+                mPersistedLineCount = lineCount;
+                return;
+            }
+        } else if (encryptedKeys.isEmpty()) {
+            return;
+        }
+
+        List<String> keyEncryptedLines = new ArrayList<>(encryptedKeys.size());
+        for (Map.Entry<String, String> entry : encryptedKeys.entrySet()) {
+            keyEncryptedLines.add(entry.getKey() + "-" + entry.getValue());
+        }
+        Files.write(path, keyEncryptedLines);
+        mPersistedEncryptKey = encryptedKeys;
+        mPersistedLineCount = keyEncryptedLines.size();
+    }
+
     private String getEncryptedKeyData(String prefixString) {
         if (prefixString == null) {
             return null;
@@ -504,8 +631,9 @@ public class BluetoothKeystoreService {
     }
 
     private void backupConfigEncryptionFile() throws IOException {
+        // Copied rather than moved, the next save appends to the file.
         if (Files.exists(Paths.get(CONFIG_FILE_ENCRYPTION_PATH))) {
-            Files.move(Paths.get(CONFIG_FILE_ENCRYPTION_PATH),
+            Files.copy(Paths.get(CONFIG_FILE_ENCRYPTION_PATH),
                     Paths.get(CONFIG_BACKUP_ENCRYPTION_PATH),
                     StandardCopyOption.REPLACE_EXISTING);
         }
@@ -646,12 +774,15 @@ public class BluetoothKeystoreService {
             }
 
             mNameDecryptKey.put(prefixString, dataString);
-            mPendingEncryptKey.put(prefixString);
+            computeAsync(prefixString, true);
         }
     }
 
     /**
-     * Load encryption file and push into mNameEncryptKey and pendingDecryptKey.
+     * Load encryption file into mNameEncryptKey and decrypt the keys in parallel if requested.
+     *
+     * <p>A later line of a key replaces the earlier ones, a line with an empty value removes
+     * the key.
      */
     @VisibleForTesting
     public void loadEncryptionFile(String filePathString, boolean doDecrypt)
@@ -661,6 +792,7 @@ public class BluetoothKeystoreService {
                 return;
             }
             List<String> allLinesString = Files.readAllLines(Paths.get(filePathString));
+            Set<String> loadedPrefixes = new LinkedHashSet<>();
             for (String line : allLinesString) {
                 int index = line.lastIndexOf("-");
                 if (index < 0) {
@@ -669,9 +801,18 @@ public class BluetoothKeystoreService {
                 String prefixString = line.substring(0, index);
                 String encryptedString = line.substring(index + 1);
 
+                if (encryptedString.isEmpty()) {
+                    mNameEncryptKey.remove(prefixString);
+                    mNameDecryptKey.remove(prefixString);
+                    loadedPrefixes.remove(prefixString);
+                    continue;
+                }
                 mNameEncryptKey.put(prefixString, encryptedString);
-                if (doDecrypt) {
-                    mPendingDecryptKey.put(prefixString);
+                loadedPrefixes.add(prefixString);
+            }
+            if (doDecrypt) {
+                for (String prefixString : loadedPrefixes) {
+                    computeAsync(prefixString, false);
                 }
             }
         } catch (IOException e) {
@@ -715,7 +856,7 @@ public class BluetoothKeystoreService {
                 errorLog("encrypt: data is null");
                 return outputBase64;
             }
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             SecretKey secretKeyReference = getOrCreateSecretKey();
 
             if (secretKeyReference != null) {
@@ -738,6 +879,7 @@ public class BluetoothKeystoreService {
         } catch (NoSuchPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding exception");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "encrypt received an invalid key");
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding problem");
@@ -766,7 +908,7 @@ public class BluetoothKeystoreService {
             }
             encryptedDataBytes = mDecoder.decode(encryptedDataBase64);
             protobuf = BluetoothKeystoreProto.EncryptedData.parser().parseFrom(encryptedDataBytes);
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             GCMParameterSpec spec =
                     new GCMParameterSpec(GCM_TAG_LENGTH, protobuf.getInitVector().toByteArray());
             SecretKey secretKeyReference = getOrCreateSecretKey();
@@ -790,6 +932,7 @@ public class BluetoothKeystoreService {
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "decrypt had bad padding");
         } catch (InvalidKeyException e) {
+            clearSecretKey();
             reportKeystoreException(e, "decrypt had an invalid key");
         } catch (InvalidAlgorithmParameterException e) {
             reportKeystoreException(e, "decrypt had an invalid algorithm parameter");
@@ -814,8 +957,20 @@ public class BluetoothKeystoreService {
         return keyStore;
     }
 
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = mCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            mCipher.set(cipher);
+        }
+        return cipher;
+    }
+
     // The getOrGenerate semantic on keystore is not thread safe, need to synchronized it.
     private synchronized SecretKey getOrCreateSecretKey() {
+        if (mSecretKey != null) {
+            return mSecretKey;
+        }
         SecretKey secretKey = null;
         try {
             KeyStore keyStore = getKeyStore();
@@ -857,9 +1012,15 @@ public class BluetoothKeystoreService {
         } catch (ProviderException e) {
             reportKeystoreException(e, "getOrCreateSecretKey had a provider exception.");
         }
+        mSecretKey = secretKey;
         return secretKey;
     }
 
+    // Drops the cached key, the next operation reads it from the keystore again.
+    private synchronized void clearSecretKey() {
+        mSecretKey = null;
+    }
+
     private static void reportKeystoreException(Exception exception, String error) {
         Log.wtf(TAG, "A keystore error was encountered: " + error, exception);
     }
@@ -881,65 +1042,4 @@ public class BluetoothKeystoreService {
     private static void errorLog(String msg) {
         Log.e(TAG, msg);
     }
-
-    /**
-     * A thread that decrypt data if the queue has new decrypt task.
-     */
-    private class ComputeDataThread extends Thread {
-        private Map<String, String> mSourceDataMap;
-        private Map<String, String> mTargetDataMap;
-        private BlockingQueue<String> mSourceQueue;
-        private boolean mDoEncrypt;
-
-        private boolean mWaitQueueEmptyForStop;
-
-        ComputeDataThread(boolean doEncrypt) {
-            infoLog("ComputeDataThread: create, doEncrypt: " + doEncrypt);
-            mWaitQueueEmptyForStop = false;
-            mDoEncrypt = doEncrypt;
-
-            if (mDoEncrypt) {
-                mSourceDataMap = mNameDecryptKey;
-                mTargetDataMap = mNameEncryptKey;
-                mSourceQueue = mPendingEncryptKey;
-            } else {
-                mSourceDataMap = mNameEncryptKey;
-                mTargetDataMap = mNameDecryptKey;
-                mSourceQueue = mPendingDecryptKey;
-            }
-        }
-
-        @Override
-        public void run() {
-            infoLog("ComputeDataThread: run, doEncrypt: " + mDoEncrypt);
-            String prefixString;
-            String sourceData;
-            String targetData;
-            while (!mSourceQueue.isEmpty() || !mWaitQueueEmptyForStop) {
-                try {
-                    prefixString = mSourceQueue.take();
-                    if (mSourceDataMap.containsKey(prefixString)) {
-                        sourceData = mSourceDataMap.get(prefixString);
-                        targetData = tryCompute(sourceData, mDoEncrypt);
-                        if (targetData != null) {
-                            mTargetDataMap.put(prefixString, targetData);
-                        } else {
-                            errorLog("Computing of Data failed with prefixString: " + prefixString
-                                    + ", doEncrypt: " + mDoEncrypt);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    infoLog("Interrupted while operating.");
-                }
-            }
-            infoLog("ComputeDataThread: Stop, doEncrypt: " + mDoEncrypt);
-        }
-
-        public void setWaitQueueEmptyForStop() {
-            mWaitQueueEmptyForStop = true;
-            if (mPendingEncryptKey.isEmpty()) {
-                interrupt();
-            }
-        }
-    }
 }
@@ -47,10 +47,12 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -69,13 +71,26 @@ public class DatabaseManager {
 
     @VisibleForTesting
     final Map<String, Metadata> mMetadataCache = new HashMap<>();
+    // Devices of mMetadataCache by last_active_time, guarded by mMetadataCache.
+    private final TreeMap<Long, BluetoothDevice> mRecencyIndex = new TreeMap<>();
+    // The only cached device with is_active_a2dp_device set, guarded by mMetadataCache.
+    private Metadata mActiveA2dpMetadata = null;
     private final Semaphore mSemaphore = new Semaphore(1);
+    // Rows waiting to be written by the next flush, by address. Guarded by itself.
+    private final Map<String, Metadata> mPendingWrites = new LinkedHashMap<>();
+    private boolean mFlushScheduled = false;
+    // Incremented whenever a delete or a clear is queued, so that a flush scheduled before it
+    // leaves the rows written after it to the flush that follows it.
+    private int mWriteGeneration = 0;
+    private long mUpdateRequests = 0;
+    private long mFlushTransactions = 0;
+    private long mRowsWritten = 0;
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
     private static final int MSG_LOAD_DATABASE = 0;
-    private static final int MSG_UPDATE_DATABASE = 1;
+    private static final int MSG_FLUSH_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
@@ -134,16 +149,20 @@ public class DatabaseManager {
                                     .createDatabaseWithoutMigration(mAdapterService);
                             list = mDatabase.load();
                         }
-                        compactLastConnectionTime(list);
+                        restoreConnectionNumbers(list);
                         cacheMetadata(list);
                     }
                     break;
                 }
-                case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.insert(data);
+                case MSG_FLUSH_DATABASE: {
+                    Metadata[] batch;
+                    synchronized (mPendingWrites) {
+                        if (msg.arg1 != mWriteGeneration) {
+                            break;
+                        }
+                        batch = takePendingWritesLocked();
                     }
+                    writeBatch(batch);
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -206,7 +225,7 @@ public class DatabaseManager {
             } else {
                 Metadata metadata = mMetadataCache.get(address);
                 if (metadata != null) {
-                    mMetadataCache.remove(address);
+                    removeMetadataLocked(address);
                     deleteDatabase(metadata);
                 }
             }
@@ -547,11 +566,14 @@ public class DatabaseManager {
             }
             // Updates last_active_time to the current counter value and increments the counter
             Metadata metadata = mMetadataCache.get(address);
+            removeFromRecencyIndexLocked(metadata);
             metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+            addToRecencyIndexLocked(metadata);
 
             // Only update is_active_a2dp_device if an a2dp device is connected
             if (isA2dpDevice) {
                 metadata.is_active_a2dp_device = true;
+                mActiveA2dpMetadata = metadata;
             }
 
             Log.d(TAG, "Updating last connected time for device: xx:xx:xx:xx:xx:xx to "
@@ -581,6 +603,9 @@ public class DatabaseManager {
             Metadata metadata = mMetadataCache.get(address);
             if (metadata.is_active_a2dp_device) {
                 metadata.is_active_a2dp_device = false;
+                if (mActiveA2dpMetadata == metadata) {
+                    mActiveA2dpMetadata = null;
+                }
                 Log.d(TAG, "setDisconnection: Updating is_active_device to false for device: "
                         + device);
                 updateDatabase(metadata);
@@ -594,13 +619,11 @@ public class DatabaseManager {
     private void resetActiveA2dpDevice() {
         synchronized (mMetadataCache) {
             Log.d(TAG, "resetActiveA2dpDevice()");
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    Log.d(TAG, "resetActiveA2dpDevice");
-                    metadata.is_active_a2dp_device = false;
-                    updateDatabase(metadata);
-                }
+            Metadata metadata = mActiveA2dpMetadata;
+            if (metadata != null) {
+                metadata.is_active_a2dp_device = false;
+                mActiveA2dpMetadata = null;
+                updateDatabase(metadata);
             }
         }
     }
@@ -613,21 +636,9 @@ public class DatabaseManager {
      * in order of most recently connected
      */
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
-        List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
         synchronized (mMetadataCache) {
-            List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
-            sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
-            for (Metadata metadata : sortedMetadata) {
-                try {
-                    mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(metadata.getAddress()));
-                } catch (IllegalArgumentException ex) {
-                    Log.d(TAG, "getBondedDevicesOrdered: Invalid address for "
-                            + "device " + metadata.getAddress());
-                }
-            }
+            return new ArrayList<>(mRecencyIndex.descendingMap().values());
         }
-        return mostRecentlyConnectedDevices;
     }
 
     /**
@@ -637,40 +648,101 @@ public class DatabaseManager {
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
         synchronized (mMetadataCache) {
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    try {
-                        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
-                                metadata.getAddress());
-                    } catch (IllegalArgumentException ex) {
-                        Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
-                                + "device " + metadata.getAddress());
-                    }
-                }
+            Metadata metadata = mActiveA2dpMetadata;
+            if (metadata == null) {
+                return null;
             }
+            BluetoothDevice device = mRecencyIndex.get(metadata.last_active_time);
+            if (device == null) {
+                Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
+                        + "device " + metadata.getAddress());
+            }
+            return device;
         }
-        return null;
     }
 
     /**
+     * Makes the loaded connection numbers distinct and resumes the counter after the highest
+     * one. Only rows sharing a number with an older row are rewritten, keeping the order of
+     * the load.
      *
-     * @param metadataList is the list of metadata
+     * @param metadataList is the list of metadata, by descending last_active_time
      */
-    private void compactLastConnectionTime(List<Metadata> metadataList) {
-        Log.d(TAG, "compactLastConnectionTime: Compacting metadata after load");
-        MetadataDatabase.sCurrentConnectionNumber = 0;
-        // Have to go in reverse order as list is ordered by descending last_active_time
+    private void restoreConnectionNumbers(List<Metadata> metadataList) {
+        long nextConnectionNumber = 0;
         for (int index = metadataList.size() - 1; index >= 0; index--) {
             Metadata metadata = metadataList.get(index);
-            if (metadata.last_active_time != MetadataDatabase.sCurrentConnectionNumber) {
-                Log.d(TAG, "compactLastConnectionTime: Setting last_active_item for device: "
+            if (metadata.last_active_time < nextConnectionNumber) {
+                Log.d(TAG, "restoreConnectionNumbers: Setting last_active_item for device: "
                         + "xx:xx:xx:xx:xx:xx from " + metadata.last_active_time + " to "
-                        + MetadataDatabase.sCurrentConnectionNumber);
-                metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber;
+                        + nextConnectionNumber);
+                metadata.last_active_time = nextConnectionNumber;
                 updateDatabase(metadata);
-                MetadataDatabase.sCurrentConnectionNumber++;
             }
+            nextConnectionNumber = metadata.last_active_time + 1;
+        }
+        MetadataDatabase.sCurrentConnectionNumber = nextConnectionNumber;
+    }
+
+    // Adds the metadata to the cache, replacing the previous one of the device, and keeps the
+    // recency index and the active A2DP device in sync. Called with mMetadataCache held.
+    private void putMetadataLocked(String address, Metadata data) {
+        Metadata previous = mMetadataCache.put(address, data);
+        if (previous != null) {
+            removeFromIndexesLocked(previous);
+        }
+        if (address.equals(LOCAL_STORAGE)) {
+            return;
+        }
+        if (mRecencyIndex.containsKey(data.last_active_time)) {
+            data.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+            updateDatabase(data);
+        }
+        addToRecencyIndexLocked(data);
+        if (data.is_active_a2dp_device) {
+            // Only the most recently connected of the active devices stays active
+            Metadata stale = data;
+            if (mActiveA2dpMetadata == null
+                    || mActiveA2dpMetadata.last_active_time < data.last_active_time) {
+                stale = mActiveA2dpMetadata;
+                mActiveA2dpMetadata = data;
+            }
+            if (stale != null) {
+                stale.is_active_a2dp_device = false;
+                updateDatabase(stale);
+            }
+        }
+    }
+
+    // Removes the metadata of the device from the cache and the indexes. Called with
+    // mMetadataCache held.
+    private void removeMetadataLocked(String address) {
+        Metadata metadata = mMetadataCache.remove(address);
+        if (metadata != null) {
+            removeFromIndexesLocked(metadata);
+        }
+    }
+
+    private void removeFromIndexesLocked(Metadata metadata) {
+        removeFromRecencyIndexLocked(metadata);
+        if (mActiveA2dpMetadata == metadata) {
+            mActiveA2dpMetadata = null;
+        }
+    }
+
+    private void addToRecencyIndexLocked(Metadata metadata) {
+        try {
+            mRecencyIndex.put(metadata.last_active_time,
+                    BluetoothAdapter.getDefaultAdapter().getRemoteDevice(metadata.getAddress()));
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "addToRecencyIndex: Invalid address for device " + metadata.getAddress());
+        }
+    }
+
+    private void removeFromRecencyIndexLocked(Metadata metadata) {
+        BluetoothDevice device = mRecencyIndex.get(metadata.last_active_time);
+        if (device != null && device.getAddress().equals(metadata.getAddress())) {
+            mRecencyIndex.remove(metadata.last_active_time);
         }
     }
 
@@ -730,8 +802,14 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
-        Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            // The rows would be cleared right after being written.
+            mPendingWrites.clear();
+            mWriteGeneration++;
+            mFlushScheduled = false;
+            Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
+            mHandler.sendMessage(message);
+        }
     }
 
     /**
@@ -740,17 +818,22 @@ public class DatabaseManager {
     public void cleanup() {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
+        flushPendingWrites();
         if (mHandlerThread != null) {
             mHandlerThread.quit();
             mHandlerThread = null;
         }
-        mMetadataCache.clear();
+        synchronized (mMetadataCache) {
+            mMetadataCache.clear();
+            mRecencyIndex.clear();
+            mActiveA2dpMetadata = null;
+        }
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
         Metadata data = new Metadata(address);
         data.is_active_a2dp_device = isActiveA2dpDevice;
-        mMetadataCache.put(address, data);
+        putMetadataLocked(address, data);
         updateDatabase(data);
         logMetadataChange(address, "Metadata created");
     }
@@ -789,7 +872,7 @@ public class DatabaseManager {
             for (Metadata data : list) {
                 String address = data.getAddress();
                 Log.v(TAG, "cacheMetadata: found device xx:xx:xx:xx:xx:xx");
-                mMetadataCache.put(address, data);
+                putMetadataLocked(address, data);
             }
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
@@ -876,14 +959,18 @@ public class DatabaseManager {
                     BluetoothProfile.CONNECTION_POLICY_UNKNOWN);
             data.a2dpSupportsOptionalCodecs = a2dpSupportsOptionalCodec;
             data.a2dpOptionalCodecsEnabled = a2dpOptionalCodecEnabled;
-            mMetadataCache.put(address, data);
+            synchronized (mMetadataCache) {
+                putMetadataLocked(address, data);
+            }
             updateDatabase(data);
         }
 
         // Mark database migrated from Settings Global
         Metadata localData = new Metadata(LOCAL_STORAGE);
         localData.migrated = true;
-        mMetadataCache.put(LOCAL_STORAGE, localData);
+        synchronized (mMetadataCache) {
+            putMetadataLocked(LOCAL_STORAGE, localData);
+        }
         updateDatabase(localData);
 
         // Reload database after migration is completed
@@ -990,17 +1077,76 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Marks the row of the device as dirty. All rows dirtied before the handler thread gets to
+     * the flush are written in a single transaction, and several updates of the same device
+     * only write its row once.
+     */
     private void updateDatabase(Metadata data) {
         if (data.getAddress() == null) {
             Log.e(TAG, "updateDatabase: address is null");
             return;
         }
         Log.d(TAG, "updateDatabase xx:xx:xx:xx:xx:xx");
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
+        synchronized (mPendingWrites) {
+            mUpdateRequests++;
+            mPendingWrites.put(data.getAddress(), data);
+            scheduleFlushLocked();
+        }
+    }
+
+    // Schedules a flush if none is pending. The flush is not delayed by later updates, so a
+    // dirty row is never held back longer than the messages already queued ahead of it.
+    private void scheduleFlushLocked() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        Message message = mHandler.obtainMessage(MSG_FLUSH_DATABASE, mWriteGeneration, 0);
         mHandler.sendMessage(message);
     }
 
+    // Returns the dirty rows and forgets them, or null if there are none.
+    private Metadata[] takePendingWritesLocked() {
+        mFlushScheduled = false;
+        if (mPendingWrites.isEmpty()) {
+            return null;
+        }
+        Metadata[] batch = mPendingWrites.values().toArray(new Metadata[0]);
+        mPendingWrites.clear();
+        return batch;
+    }
+
+    private void writeBatch(Metadata[] batch) {
+        if (batch == null) {
+            return;
+        }
+        synchronized (mDatabase) {
+            mDatabase.insert(batch);
+        }
+        synchronized (mPendingWrites) {
+            mFlushTransactions++;
+            mRowsWritten += batch.length;
+        }
+    }
+
+    /**
+     * Writes the dirty rows on the calling thread, without waiting for the handler thread.
+     */
+    @VisibleForTesting
+    void flushPendingWrites() {
+        if (mDatabase == null) {
+            return;
+        }
+        Metadata[] batch;
+        synchronized (mPendingWrites) {
+            batch = takePendingWritesLocked();
+            // The flush already queued, if any, has nothing left to write.
+            mWriteGeneration++;
+        }
+        writeBatch(batch);
+    }
+
     @VisibleForTesting
     void deleteDatabase(Metadata data) {
         String address = data.getAddress();
@@ -1009,9 +1155,37 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
-        Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
-        message.obj = data.getAddress();
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            mPendingWrites.remove(address);
+            mWriteGeneration++;
+            mFlushScheduled = false;
+            Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
+            message.obj = data.getAddress();
+            mHandler.sendMessage(message);
+            if (!mPendingWrites.isEmpty()) {
+                scheduleFlushLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of transactions written to the database.
+     */
+    @VisibleForTesting
+    long getFlushTransactionCount() {
+        synchronized (mPendingWrites) {
+            return mFlushTransactions;
+        }
+    }
+
+    /**
+     * Returns the number of rows written to the database.
+     */
+    @VisibleForTesting
+    long getRowsWrittenCount() {
+        synchronized (mPendingWrites) {
+            return mRowsWritten;
+        }
     }
 
     private void logManufacturerInfo(BluetoothDevice device, int key, byte[] bytesValue) {
@@ -1058,6 +1232,11 @@ public class DatabaseManager {
      */
     public void dump(PrintWriter writer) {
         writer.println("\nBluetoothDatabase:");
+        synchronized (mPendingWrites) {
+            writer.println("  Updates: " + mUpdateRequests + ", rows written: " + mRowsWritten
+                    + ", write transactions: " + mFlushTransactions
+                    + ", pending rows: " + mPendingWrites.size());
+        }
         writer.println("  Metadata Changes:");
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
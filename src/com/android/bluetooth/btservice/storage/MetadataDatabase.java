@@ -40,7 +40,7 @@ public abstract class MetadataDatabase extends RoomDatabase {
      */
     public static final String DATABASE_NAME = "bluetooth_db";
 
-    static int sCurrentConnectionNumber = 0;
+    static long sCurrentConnectionNumber = 0;
 
     protected abstract MetadataDao mMetadataDao();
 
@@ -157,6 +157,8 @@ import java.util.Objects;
     public long startTime = 0;
     public long stopTime = 0;
     public int results = 0;
+    // Results served from an advertisement already parsed for another scanner
+    private int mSharedParseResults = 0;
 
     AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
@@ -192,6 +194,10 @@ import java.util.Objects;
         results++;
     }
 
+    synchronized void addSharedParseResult() {
+        mSharedParseResults++;
+    }
+
     boolean isScanning() {
         return !mOngoingScans.isEmpty();
     }
@@ -624,6 +630,8 @@ import java.util.Objects;
                 + " / " + ambientDiscoveryScan);
         sb.append("\n  Score                                                       : " + Score);
         sb.append("\n  Total number of results                                     : " + results);
+        sb.append("\n  Results sharing a parsed advertisement (parses saved)       : "
+                + mSharedParseResults);
 
         if (!mLastScans.isEmpty()) {
             sb.append("\n  Last " + mLastScans.size()
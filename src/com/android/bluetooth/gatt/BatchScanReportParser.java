@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor over the raw record buffer of a batch scan report.
+ *
+ * Records are walked in place: the address, RSSI and timestamp of the current record can be
+ * inspected without any allocation, and a {@link ScanResult} is only built for the records
+ * the caller decides to deliver.
+ * @hide
+ */
+/*package*/ class BatchScanReportParser {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanReportParser";
+
+    static final int MAC_ADDRESS_LENGTH = 6;
+
+    // Truncated record: address, address type, tx power, rssi and timestamp.
+    static final int TRUNCATED_RESULT_SIZE = 11;
+    private static final int TRUNCATED_RSSI_OFFSET = 8;
+    private static final int TRUNCATED_TIMESTAMP_OFFSET = 9;
+
+    // Full record header: address, address type, tx power, rssi and timestamp, followed by
+    // the advertising data and the scan response, each prefixed by its length.
+    private static final int FULL_HEADER_SIZE = 11;
+    private static final int FULL_RSSI_OFFSET = 8;
+    private static final int FULL_TIMESTAMP_OFFSET = 9;
+
+    // Timestamp is in units of 50 ms.
+    private static final long TIMESTAMP_UNIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Scan record shared by all truncated results, which carry no advertising data.
+    private static final ScanRecord EMPTY_SCAN_RECORD = ScanRecord.parseFromBytes(new byte[0]);
+
+    private final boolean mTruncated;
+    private final int mNumRecords;
+    private final byte[] mData;
+    private final long mNowNanos;
+
+    private int mRecordIndex = -1;
+    private int mRecordOffset;
+    private int mNextOffset;
+    private int mAdvertiseOffset;
+    private int mAdvertiseLength;
+    private int mScanResponseOffset;
+    private int mScanResponseLength;
+
+    BatchScanReportParser(int reportType, int numRecords, byte[] recordData, long nowNanos) {
+        mTruncated = reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED;
+        mNumRecords = numRecords;
+        mData = recordData == null ? new byte[0] : recordData;
+        mNowNanos = nowNanos;
+    }
+
+    /**
+     * Moves the cursor to the next record.
+     *
+     * @return false when there are no more complete records in the report
+     */
+    boolean next() {
+        if (mNumRecords == 0) {
+            return false;
+        }
+        int offset = mNextOffset;
+        if (mTruncated) {
+            if (mRecordIndex + 1 >= mNumRecords || offset + TRUNCATED_RESULT_SIZE > mData.length) {
+                return false;
+            }
+            mNextOffset = offset + TRUNCATED_RESULT_SIZE;
+        } else {
+            int position = offset + FULL_HEADER_SIZE;
+            if (position >= mData.length) {
+                return false;
+            }
+            int advertiseLength = mData[position++] & 0xFF;
+            int advertiseOffset = position;
+            position += advertiseLength;
+            if (position >= mData.length) {
+                Log.w(TAG, "Truncated batch record at offset " + offset);
+                return false;
+            }
+            int scanResponseLength = mData[position++] & 0xFF;
+            int scanResponseOffset = position;
+            position += scanResponseLength;
+            if (position > mData.length) {
+                Log.w(TAG, "Truncated batch record at offset " + offset);
+                return false;
+            }
+            mAdvertiseOffset = advertiseOffset;
+            mAdvertiseLength = advertiseLength;
+            mScanResponseOffset = scanResponseOffset;
+            mScanResponseLength = scanResponseLength;
+            mNextOffset = position;
+        }
+        mRecordOffset = offset;
+        mRecordIndex++;
+        return true;
+    }
+
+    /**
+     * Returns the index of the current record in the report.
+     */
+    int getRecordIndex() {
+        return mRecordIndex;
+    }
+
+    int getRssi() {
+        return mData[mRecordOffset + (mTruncated ? TRUNCATED_RSSI_OFFSET : FULL_RSSI_OFFSET)];
+    }
+
+    long getTimestampNanos() {
+        int position =
+                mRecordOffset + (mTruncated ? TRUNCATED_TIMESTAMP_OFFSET : FULL_TIMESTAMP_OFFSET);
+        int timestampUnit = (mData[position] & 0xFF) | ((mData[position + 1] & 0xFF) << 8);
+        return mNowNanos - timestampUnit * TIMESTAMP_UNIT_NANOS;
+    }
+
+    /**
+     * Returns true if the address of the current record equals the given address string,
+     * ignoring case.
+     */
+    boolean isAddress(String address) {
+        if (address == null || address.length() != MAC_ADDRESS_LENGTH * 3 - 1) {
+            return false;
+        }
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            // The address is stored in little endian order.
+            int value = mData[mRecordOffset + MAC_ADDRESS_LENGTH - 1 - i] & 0xFF;
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || ((high << 4) | low) != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the address of the current record in big endian order.
+     */
+    byte[] getAddress() {
+        byte[] address = new byte[MAC_ADDRESS_LENGTH];
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            address[i] = mData[mRecordOffset + MAC_ADDRESS_LENGTH - 1 - i];
+        }
+        return address;
+    }
+
+    /**
+     * Builds the scan result of the current record.
+     */
+    ScanResult toScanResult(BluetoothDevice device) {
+        ScanRecord scanRecord;
+        if (mTruncated) {
+            scanRecord = EMPTY_SCAN_RECORD;
+        } else {
+            // Combine advertise packet and scan response packet.
+            byte[] scanRecordBytes = new byte[mAdvertiseLength + mScanResponseLength];
+            System.arraycopy(mData, mAdvertiseOffset, scanRecordBytes, 0, mAdvertiseLength);
+            System.arraycopy(mData, mScanResponseOffset, scanRecordBytes, mAdvertiseLength,
+                    mScanResponseLength);
+            scanRecord = ScanRecord.parseFromBytes(scanRecordBytes);
+        }
+        return new ScanResult(device, scanRecord, getRssi(), getTimestampNanos());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayDeque;
+
+/**
+ * Queue of the callbacks held back while a connection is congested.
+ *
+ * The callbacks are kept in a ring of preallocated slots, so queueing a callback does not
+ * allocate. Producers are serialized, while the single consumer polls without taking a lock.
+ * Callbacks that do not fit into the ring spill into an unbounded overflow list, which the
+ * consumer moves back into the ring once it drained it. The order is kept across both.
+ * @hide
+ */
+/*package*/ class CallbackQueue {
+    private final int mCapacity;
+    private final int mMask;
+    private final String[] mAddresses;
+    private final int[] mStatuses;
+    private final int[] mHandles;
+
+    private final Object mProducerLock = new Object();
+    // Callbacks queued after the ring filled up, under mProducerLock.
+    private final ArrayDeque<CallbackInfo> mSpilled = new ArrayDeque<CallbackInfo>();
+    // Size of mSpilled, readable without the lock.
+    private volatile int mSpilledSize = 0;
+    // Only written by producers, under mProducerLock.
+    private volatile long mTail = 0;
+    // Only written by the consumer.
+    private volatile long mHead = 0;
+    private volatile long mOverflows = 0;
+
+    /**
+     * @param capacity number of slots, a power of two
+     */
+    CallbackQueue(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mAddresses = new String[capacity];
+        mStatuses = new int[capacity];
+        mHandles = new int[capacity];
+    }
+
+    /**
+     * Queues a callback.
+     */
+    void offer(String address, int status, int handle) {
+        synchronized (mProducerLock) {
+            long tail = mTail;
+            // Once callbacks spilled, the later ones follow them to keep the order.
+            if (mSpilledSize > 0 || tail - mHead == mCapacity) {
+                mSpilled.add(new CallbackInfo(address, status, handle));
+                mSpilledSize = mSpilled.size();
+                mOverflows++;
+                return;
+            }
+            int slot = (int) tail & mMask;
+            mAddresses[slot] = address;
+            mStatuses[slot] = status;
+            mHandles[slot] = handle;
+            // Publishes the slot to the consumer.
+            mTail = tail + 1;
+        }
+    }
+
+    /**
+     * Takes the oldest callback, copying it into the given holder.
+     *
+     * @return false if no callback is queued
+     */
+    boolean poll(CallbackInfo out) {
+        long head = mHead;
+        if (head == mTail) {
+            if (mSpilledSize == 0) {
+                return false;
+            }
+            refill();
+        }
+        int slot = (int) head & mMask;
+        out.address = mAddresses[slot];
+        out.status = mStatuses[slot];
+        out.handle = mHandles[slot];
+        mAddresses[slot] = null;
+        // Hands the slot back to the producers.
+        mHead = head + 1;
+        return true;
+    }
+
+    // Moves spilled callbacks into the drained ring, on the consumer thread.
+    private void refill() {
+        synchronized (mProducerLock) {
+            long tail = mTail;
+            while (tail - mHead < mCapacity) {
+                CallbackInfo info = mSpilled.poll();
+                if (info == null) {
+                    break;
+                }
+                int slot = (int) tail & mMask;
+                mAddresses[slot] = info.address;
+                mStatuses[slot] = info.status;
+                mHandles[slot] = info.handle;
+                tail++;
+            }
+            mSpilledSize = mSpilled.size();
+            mTail = tail;
+        }
+    }
+
+    int size() {
+        return (int) (mTail - mHead) + mSpilledSize;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of callbacks that did not fit into the ring and spilled.
+     */
+    long getOverflowCount() {
+        return mOverflows;
+    }
+}
@@ -23,12 +23,14 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.WorkSource;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -42,6 +44,9 @@ import java.util.UUID;
 /*package*/ class ContextMap<C, T> {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "ContextMap";
 
+    // Preallocated slots per app for the callbacks held back while its connection is congested.
+    private static final int CONGESTION_QUEUE_CAPACITY = 256;
+
     /**
      * Connection class helps map connection IDs to device addresses.
      */
@@ -92,6 +97,11 @@ import java.util.UUID;
         /** Whether the calling app has bluetooth privileged permission */
         boolean hasBluetoothPrivilegedPermission;
 
+        /** Last connection and handle whose notifications passed the permission check */
+        int notifyAllowedConnId;
+        int notifyAllowedHandle = -1;
+        int notifyAllowedVersion;
+
         /** The user handle of the app that started the scan */
         UserHandle mUserHandle;
 
@@ -114,8 +124,11 @@ import java.util.UUID;
 
         public List<String> mAssociatedDevices;
 
-        /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> mCongestionQueue = new ArrayList<CallbackInfo>();
+        /**
+         * Internal callback info queue, waiting to be send on congestion clear. Created on the
+         * first congestion, as most apps never see one.
+         */
+        private volatile CallbackQueue mCongestionQueue;
 
         /**
          * Creates a new app context.
@@ -128,6 +141,16 @@ import java.util.UUID;
             this.appScanStats = appScanStats;
         }
 
+        /**
+         * Sets the id assigned by the stack and indexes the app by it.
+         */
+        void setId(int id) {
+            synchronized (mApps) {
+                this.id = id;
+                publishAppIndex();
+            }
+        }
+
         /**
          * Link death recipient
          */
@@ -159,15 +182,41 @@ import java.util.UUID;
             }
         }
 
-        void queueCallback(CallbackInfo callbackInfo) {
-            mCongestionQueue.add(callbackInfo);
+        /**
+         * Holds back a callback until the congestion clears.
+         */
+        void queueCallback(String address, int status, int handle) {
+            CallbackQueue queue = mCongestionQueue;
+            if (queue == null) {
+                synchronized (this) {
+                    queue = mCongestionQueue;
+                    if (queue == null) {
+                        queue = new CallbackQueue(CONGESTION_QUEUE_CAPACITY);
+                        mCongestionQueue = queue;
+                    }
+                }
+            }
+            queue.offer(address, status, handle);
         }
 
-        CallbackInfo popQueuedCallback() {
-            if (mCongestionQueue.size() == 0) {
-                return null;
+        /**
+         * Takes the oldest held back callback. Must only be called from the thread delivering
+         * the congestion callbacks.
+         *
+         * @return false if no callback is queued
+         */
+        boolean pollQueuedCallback(CallbackInfo out) {
+            CallbackQueue queue = mCongestionQueue;
+            return queue != null && queue.poll(out);
+        }
+
+        void dumpCongestionQueue(StringBuilder sb) {
+            CallbackQueue queue = mCongestionQueue;
+            if (queue == null) {
+                return;
             }
-            return mCongestionQueue.remove(0);
+            sb.append("  App " + id + " (" + name + "): congestion queue " + queue.size() + "/"
+                    + queue.getCapacity() + ", spilled " + queue.getOverflowCount() + "\n");
         }
     }
 
@@ -180,6 +229,35 @@ import java.util.UUID;
     /** Internal list of connected devices **/
     private Set<Connection> mConnections = new HashSet<Connection>();
 
+    /**
+     * Indexes of the connections. They are never modified once published, but replaced on
+     * every change, so lookups from the callback paths never block on registration or
+     * connection churn.
+     */
+    private class ConnectionIndex {
+        public final SparseArray<Connection> byConnId = new SparseArray<Connection>();
+        public final Map<String, List<Connection>> byAddress =
+                new HashMap<String, List<Connection>>();
+
+        ConnectionIndex(Set<Connection> connections) {
+            for (Connection connection : connections) {
+                byConnId.put(connection.connId, connection);
+                String key = normalizeAddress(connection.address);
+                List<Connection> addressConnections = byAddress.get(key);
+                if (addressConnections == null) {
+                    addressConnections = new ArrayList<Connection>();
+                    byAddress.put(key, addressConnections);
+                }
+                addressConnections.add(connection);
+            }
+        }
+    }
+
+    /** Immutable index of the registered apps by id, see {@link ConnectionIndex} */
+    private volatile SparseArray<App> mAppsById = new SparseArray<App>();
+
+    private volatile ConnectionIndex mConnectionIndex = new ConnectionIndex(mConnections);
+
     /**
      * Add an entry to the application context list.
      */
@@ -198,6 +276,7 @@ import java.util.UUID;
             }
             App app = new App(uuid, callback, info, appName, appScanStats);
             mApps.add(app);
+            publishAppIndex();
             appScanStats.isRegistered = true;
             return app;
         }
@@ -215,6 +294,7 @@ import java.util.UUID;
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    publishAppIndex();
                     break;
                 }
             }
@@ -235,6 +315,7 @@ import java.util.UUID;
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
                     i.remove();
+                    publishAppIndex();
                     break;
                 }
             }
@@ -264,6 +345,7 @@ import java.util.UUID;
             App entry = getById(id);
             if (entry != null) {
                 mConnections.add(new Connection(connId, address, id));
+                publishConnectionIndex();
             }
         }
     }
@@ -273,13 +355,10 @@ import java.util.UUID;
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            Connection connection = mConnectionIndex.byConnId.get(connId);
+            if (connection != null) {
+                mConnections.remove(connection);
+                publishConnectionIndex();
             }
         }
     }
@@ -289,12 +368,8 @@ import java.util.UUID;
      */
     void removeConnectionsByAppId(int appId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    i.remove();
-                }
+            if (mConnections.removeIf(connection -> connection.appId == appId)) {
+                publishConnectionIndex();
             }
         }
     }
@@ -303,17 +378,11 @@ import java.util.UUID;
      * Get an application context by ID.
      */
     App getById(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
-                }
-            }
+        App app = mAppsById.get(id);
+        if (app == null) {
+            Log.e(TAG, "Context not found for ID " + id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        return app;
     }
 
     /**
@@ -404,19 +473,9 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnections) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnectionIndex.byConnId.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -429,11 +488,13 @@ import java.util.UUID;
         if (entry == null) {
             return null;
         }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
+        if (address == null) {
+            return null;
+        }
+        List<Connection> connections = mConnectionIndex.byAddress.get(normalizeAddress(address));
+        if (connections != null) {
+            for (Connection connection : connections) {
+                if (connection.appId == id) {
                     return connection.connId;
                 }
             }
@@ -445,14 +506,9 @@ import java.util.UUID;
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
+        Connection connection = mConnectionIndex.byConnId.get(connId);
+        if (connection != null) {
+            return connection.address;
         }
         return null;
     }
@@ -483,10 +539,12 @@ import java.util.UUID;
                 entry.appScanStats.isRegistered = false;
                 i.remove();
             }
+            publishAppIndex();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            publishConnectionIndex();
         }
     }
 
@@ -503,6 +561,26 @@ import java.util.UUID;
         return connectedmap;
     }
 
+    // Must be called with mApps held.
+    private void publishAppIndex() {
+        SparseArray<App> appsById = new SparseArray<App>(mApps.size());
+        // Iterate backwards so the first registered app wins for duplicated ids.
+        for (int i = mApps.size() - 1; i >= 0; i--) {
+            App app = mApps.get(i);
+            appsById.put(app.id, app);
+        }
+        mAppsById = appsById;
+    }
+
+    // Must be called with mConnections held.
+    private void publishConnectionIndex() {
+        mConnectionIndex = new ConnectionIndex(mConnections);
+    }
+
+    private static String normalizeAddress(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+
     /**
      * Logs debug information.
      */
@@ -516,5 +594,11 @@ import java.util.UUID;
             AppScanStats appScanStats = entry.getValue();
             appScanStats.dumpToString(sb);
         }
+
+        synchronized (mApps) {
+            for (App app : mApps) {
+                app.dumpCongestionQueue(sb);
+            }
+        }
     }
 }
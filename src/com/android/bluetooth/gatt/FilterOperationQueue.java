@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tracks the scan filter commands issued to the controller without waiting for each of them.
+ *
+ * The stack executes scan commands in the order they were issued and completes them in the
+ * same order, so each completion belongs to the oldest outstanding operation. Adding a filter
+ * completes once per filter entry.
+ * @hide
+ */
+/*package*/ class FilterOperationQueue {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "FilterOperationQueue";
+
+    static final int OP_ENABLE = 0;
+    static final int OP_ADD_FILTER = 1;
+    static final int OP_ADD_PARAMS = 2;
+    static final int OP_DELETE_PARAMS = 3;
+
+    private static class Operation {
+        public final int type;
+        public final int scannerId;
+        public final int filterIndex;
+        public final long issuedMillis;
+        public int remainingCompletions;
+
+        Operation(int type, int scannerId, int filterIndex, long issuedMillis,
+                int completions) {
+            this.type = type;
+            this.scannerId = scannerId;
+            this.filterIndex = filterIndex;
+            this.issuedMillis = issuedMillis;
+            this.remainingCompletions = completions;
+        }
+    }
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private long mIssued = 0;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+    private long mTotalLatencyMillis = 0;
+    private long mMaxLatencyMillis = 0;
+    private int mMaxDepth = 0;
+
+    /**
+     * Records a command handed to the stack that completes once.
+     */
+    void onIssued(int type, int scannerId, int filterIndex) {
+        onIssued(type, scannerId, filterIndex, 1);
+    }
+
+    /**
+     * Records a command handed to the stack.
+     *
+     * @param completions number of completions the stack reports for the command
+     */
+    synchronized void onIssued(int type, int scannerId, int filterIndex, int completions) {
+        if (completions <= 0) {
+            return;
+        }
+        mPending.add(new Operation(type, scannerId, filterIndex,
+                SystemClock.elapsedRealtime(), completions));
+        mIssued++;
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+    }
+
+    /**
+     * Matches a completion reported by the stack with the oldest outstanding command.
+     *
+     * @return false if no command was outstanding
+     */
+    synchronized boolean onCompleted(int scannerId, int status) {
+        Operation operation = mPending.peek();
+        if (operation == null) {
+            Log.w(TAG, "Unexpected scan filter completion for scannerId " + scannerId);
+            return false;
+        }
+        if (status != 0) {
+            mFailed++;
+            Log.e(TAG, "Scan filter operation " + typeToString(operation.type) + " for scannerId "
+                    + operation.scannerId + ", filter index " + operation.filterIndex
+                    + " failed with status " + status);
+        } else if (operation.scannerId != scannerId) {
+            Log.w(TAG, "Scan filter completion for scannerId " + scannerId + " matched "
+                    + typeToString(operation.type) + " of scannerId " + operation.scannerId);
+        }
+        if (--operation.remainingCompletions > 0) {
+            return true;
+        }
+        mPending.poll();
+        long latencyMillis = SystemClock.elapsedRealtime() - operation.issuedMillis;
+        mCompleted++;
+        mTotalLatencyMillis += latencyMillis;
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latencyMillis);
+        return true;
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+    }
+
+    private static String typeToString(int type) {
+        switch (type) {
+            case OP_ENABLE:
+                return "ENABLE";
+            case OP_ADD_FILTER:
+                return "ADD_FILTER";
+            case OP_ADD_PARAMS:
+                return "ADD_PARAMS";
+            case OP_DELETE_PARAMS:
+                return "DELETE_PARAMS";
+            default:
+                return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Filter commands issued: " + mIssued + ", completed: " + mCompleted
+                + ", failed: " + mFailed + ", outstanding: " + mPending.size()
+                + ", max outstanding: " + mMaxDepth + "\n");
+        if (mCompleted > 0) {
+            sb.append("  Filter command latency avg: " + (mTotalLatencyMillis / mCompleted)
+                    + " ms, max: " + mMaxLatencyMillis + " ms\n");
+        }
+    }
+}
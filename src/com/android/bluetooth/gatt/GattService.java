@@ -65,6 +65,7 @@ import android.provider.DeviceConfig;
 import android.provider.Settings;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.R;
@@ -79,7 +80,6 @@ import com.android.internal.util.HexDump;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -104,11 +104,6 @@ public class GattService extends ProfileService {
     static final int SCAN_FILTER_ENABLED = 1;
     static final int SCAN_FILTER_MODIFIED = 2;
 
-    private static final int MAC_ADDRESS_LENGTH = 6;
-    // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-    private static final int TIME_STAMP_LENGTH = 2;
-
     private enum MatchOrigin {
         PSEUDO_ADDRESS,
         ORIGINAL_ADDRESS
@@ -131,11 +126,41 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Full batch scan results partitioned for a single scan client.
+     */
+    private static class BatchScanDelivery {
+        public final ScanClient client;
+        public final ScannerMap.App app;
+        public final boolean hasPermission;
+        public final boolean isIndexed;
+        public final ArrayList<ScanResult> results = new ArrayList<ScanResult>();
+        // True if the client may receive at least one record of the report.
+        public boolean hasPermittedRecords;
+
+        BatchScanDelivery(ScanClient client, ScannerMap.App app, boolean hasPermission,
+                boolean isIndexed) {
+            this.client = client;
+            this.app = app;
+            this.hasPermission = hasPermission;
+            this.isIndexed = isIndexed;
+        }
+    }
+
     /**
      * The default floor value for LE batch scan report delays greater than 0
      */
     private static final long DEFAULT_REPORT_DELAY_FLOOR = 5000;
 
+    /**
+     * Size budget of the batch scan results sent in a single binder transaction, well below
+     * the binder buffer shared by all transactions of the app.
+     */
+    private static final int BATCH_SCAN_RESULTS_BYTES_BUDGET = 64 * 1024;
+
+    // Estimated parcel size of a scan result excluding its advertising data.
+    private static final int SCAN_RESULT_PARCEL_OVERHEAD_BYTES = 128;
+
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
     private static final int ADVT_STATE_ONLOST = 1;
@@ -212,12 +237,27 @@ public class GattService extends ProfileService {
      * Server handle map.
      */
     HandleMap mHandleMap = new HandleMap();
+
+    /**
+     * Outbound notifications of the server apps.
+     */
+    private final ServerNotificationQueue mServerNotificationQueue =
+            new ServerNotificationQueue(this::sendServerNotification,
+                    MAX_SERVER_NOTIFICATIONS_IN_FLIGHT, SERVER_NOTIFICATION_QUEUE_CAPACITY,
+                    SERVER_NOTIFICATION_SEND_TIMEOUT_MS);
     private List<UUID> mAdvertisingServiceUuids = new ArrayList<UUID>();
 
     private int mMaxScanFilters;
 
     private static final int NUM_SCAN_EVENTS_KEPT = 20;
 
+    // Notifications and indications handed to the stack per connection before waiting for
+    // completions, and the number of further values queued per connection.
+    private static final int MAX_SERVER_NOTIFICATIONS_IN_FLIGHT = 8;
+    private static final int SERVER_NOTIFICATION_QUEUE_CAPACITY = 64;
+    // A value in flight for longer than the ATT transaction timeout is not completed any more.
+    private static final long SERVER_NOTIFICATION_SEND_TIMEOUT_MS = 30 * 1000;
+
     /**
      * Internal list of scan events to use with the proto
      */
@@ -228,6 +268,8 @@ public class GattService extends ProfileService {
      * Set of restricted (which require a BLUETOOTH_PRIVILEGED permission) handles per connectionId.
      */
     private final Map<Integer, Set<Integer>> mRestrictedHandles = new HashMap<>();
+    // Incremented whenever mRestrictedHandles changes, on the stack callback thread.
+    private int mRestrictedHandlesVersion = 0;
 
     private AdapterService mAdapterService;
     private AdvertiseManager mAdvertiseManager;
@@ -309,6 +351,7 @@ public class GattService extends ProfileService {
         mClientMap.clear();
         mServerMap.clear();
         mHandleMap.clear();
+        mServerNotificationQueue.clear();
         mReliableQueue.clear();
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
@@ -434,6 +477,23 @@ public class GattService extends ProfileService {
         return app.hasBluetoothPrivilegedPermission;
     }
 
+    // Notifications of a connection mostly come from the same handle. The last connection and
+    // handle of an app that passed the check are remembered until the restricted handles
+    // change, so the check does not box and look up the handle for every packet.
+    private boolean notifyPermissionCheck(ClientMap.App app, int connId, int handle) {
+        if (app.notifyAllowedHandle == handle && app.notifyAllowedConnId == connId
+                && app.notifyAllowedVersion == mRestrictedHandlesVersion) {
+            return true;
+        }
+        if (!permissionCheck(app, connId, handle)) {
+            return false;
+        }
+        app.notifyAllowedConnId = connId;
+        app.notifyAllowedHandle = handle;
+        app.notifyAllowedVersion = mRestrictedHandlesVersion;
+        return true;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (GattDebugUtils.handleDebugAction(this, intent)) {
@@ -1195,7 +1255,14 @@ public class GattService extends ProfileService {
                     + ", originalAddress=" + originalAddress);
         }
 
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // Parse each view of the advertisement at most once and share it with all scanners.
+        ScanResultCache resultCache = new ScanResultCache(getAnonymousDevice(address), eventType,
+                primaryPhy, secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, advData,
+                SystemClock.elapsedRealtimeNanos());
+        // Filter index lookups per view of the advertisement, done on first use.
+        ScanFilterIndex filterIndex = mScanManager.getScanFilterIndex();
+        SparseIntArray legacyMatches = null;
+        SparseIntArray extendedMatches = null;
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
@@ -1206,30 +1273,20 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = getAnonymousDevice(address);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    Log.i(TAG, "Non legacy result in legacy scan, skipping scanner id "
-                               + client.scannerId + ", eventType=" + eventType);
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
-                }
-            } else {
-                scanRecordData = advData;
+            boolean legacy = settings.getLegacy();
+            if (legacy && (eventType & ET_LEGACY_MASK) == 0) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                Log.i(TAG, "Non legacy result in legacy scan, skipping scanner id "
+                           + client.scannerId + ", eventType=" + eventType);
+                continue;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
+            if (resultCache.isParsed(legacy)) {
+                app.appScanStats.addSharedParseResult();
+            }
+            ScanResult result = resultCache.getResult(legacy);
 
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
@@ -1250,10 +1307,12 @@ public class GattService extends ProfileService {
                     }
                 }
             }
+            boolean isSanitized = false;
             if (!hasPermission && client.eligibleForSanitizedExposureNotification) {
                 ScanResult sanitized = getSanitizedExposureNotification(result);
                 if (sanitized != null) {
                     hasPermission = true;
+                    isSanitized = true;
                     result = sanitized;
                 }
             }
@@ -1264,7 +1323,22 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            MatchResult matchResult = matchesFilters(client, result, originalAddress);
+            MatchResult matchResult;
+            if (!isSanitized && filterIndex.isIndexed(client)) {
+                SparseIntArray matches = legacy ? legacyMatches : extendedMatches;
+                if (matches == null) {
+                    matches = filterIndex.match(result, originalAddress);
+                    if (legacy) {
+                        legacyMatches = matches;
+                    } else {
+                        extendedMatches = matches;
+                    }
+                }
+                matchResult = toMatchResult(
+                        matches.get(client.scannerId, ScanFilterIndex.NO_MATCH));
+            } else {
+                matchResult = matchesFilters(client, result, originalAddress);
+            }
             if (!matchResult.getMatches()) {
                 if (VDBG || mAdapterService.getIsVerboseLoggingEnabledForAll()) {
                     Log.d(TAG, "result did not match filter for scanner id " + client.scannerId);
@@ -1273,10 +1347,8 @@ public class GattService extends ProfileService {
             }
 
             if (matchResult.getMatchOrigin() == MatchOrigin.ORIGINAL_ADDRESS) {
-                result = new ScanResult(getAnonymousDevice(originalAddress), eventType, primaryPhy,
-                        secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
-
+                result = resultCache.getResultForDevice(getAnonymousDevice(originalAddress),
+                        legacy);
             }
 
             if ((settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) == 0) {
@@ -1351,7 +1423,7 @@ public class GattService extends ProfileService {
         ScannerMap.App cbApp = mScannerMap.getByUuid(uuid);
         if (cbApp != null) {
             if (status == 0) {
-                cbApp.id = scannerId;
+                cbApp.setId(scannerId);
                 // If app is callback based, setup a death recipient. App will initiate the start.
                 // Otherwise, if PendingIntent based, start the scan directly.
                 if (cbApp.callback != null) {
@@ -1381,6 +1453,18 @@ public class GattService extends ProfileService {
         return client.hasLocationPermission && !Utils.blockedByLocationOff(this, client.userHandle);
     }
 
+    // Convert a match origin reported by the scan filter index.
+    private static MatchResult toMatchResult(int indexMatch) {
+        switch (indexMatch) {
+            case ScanFilterIndex.MATCH_PSEUDO_ADDRESS:
+                return new MatchResult(true, MatchOrigin.PSEUDO_ADDRESS);
+            case ScanFilterIndex.MATCH_ORIGINAL_ADDRESS:
+                return new MatchResult(true, MatchOrigin.ORIGINAL_ADDRESS);
+            default:
+                return new MatchResult(false, MatchOrigin.PSEUDO_ADDRESS);
+        }
+    }
+
     // Check if a scan record matches a specific filters.
     private MatchResult matchesFilters(ScanClient client, ScanResult scanResult) {
         return matchesFilters(client, scanResult, null);
@@ -1416,7 +1500,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                app.setId(clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -1487,7 +1571,6 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onClientPhyRead() - no connection to " + address);
             return;
         }
-
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -1693,6 +1776,7 @@ public class GattService extends ProfileService {
 
         if (!restrictedIds.isEmpty()) {
             mRestrictedHandles.put(connId, restrictedIds);
+            mRestrictedHandlesVersion++;
         }
         // Search is complete when there was error, or nothing more to process
         app.callback.onSearchComplete(address, dbOut, 0 /* status */);
@@ -1717,7 +1801,7 @@ public class GattService extends ProfileService {
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            if (!permissionCheck(app, connId, handle)) {
+            if (!notifyPermissionCheck(app, connId, handle)) {
                 Log.w(TAG, "onNotify() - permission check failed!");
                 return;
             }
@@ -1758,8 +1842,7 @@ public class GattService extends ProfileService {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
-            CallbackInfo callbackInfo = new CallbackInfo(address, status, handle);
-            app.queueCallback(callbackInfo);
+            app.queueCallback(address, status, handle);
         }
     }
 
@@ -1822,7 +1905,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
                     + ", action=" + action);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.filterOperationDone(clientIf, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
@@ -1831,7 +1914,7 @@ public class GattService extends ProfileService {
                     "onScanFilterParamsConfigured() - clientIf=" + clientIf + ", status=" + status
                             + ", action=" + action + ", availableSpace=" + availableSpace);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.filterOperationDone(clientIf, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
@@ -1842,7 +1925,7 @@ public class GattService extends ProfileService {
                     + availableSpace);
         }
 
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.filterOperationDone(clientIf, status);
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
@@ -1886,7 +1969,8 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
         mScanManager.callbackDone(scannerId, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        BatchScanReportParser parser = new BatchScanReportParser(reportType, numRecords,
+                recordData, SystemClock.elapsedRealtimeNanos());
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ScannerMap.App app = mScannerMap.getById(scannerId);
@@ -1899,55 +1983,51 @@ public class GattService extends ProfileService {
                 return;
             }
 
-            ArrayList<ScanResult> permittedResults;
-            if (hasScanResultPermission(client)) {
-                permittedResults = new ArrayList<ScanResult>(results);
-            } else {
-                permittedResults = new ArrayList<ScanResult>();
-                for (ScanResult scanResult : results) {
-                    for (String associatedDevice : client.associatedDevices) {
-                        if (associatedDevice.equalsIgnoreCase(scanResult.getDevice()
-                                    .getAddress())) {
-                            permittedResults.add(scanResult);
-                        }
-                    }
+            boolean hasPermission = hasScanResultPermission(client);
+            ArrayList<ScanResult> permittedResults = new ArrayList<ScanResult>();
+            // The controller may report the same record more than once.
+            Set<ScanResult> seenResults = new HashSet<ScanResult>();
+            while (parser.next()) {
+                if (!hasPermission && !isAssociatedDevice(client, parser)) {
+                    continue;
+                }
+                ScanResult scanResult =
+                        parser.toScanResult(getAnonymousDevice(parser.getAddress()));
+                if (!seenResults.add(scanResult)) {
+                    continue;
                 }
-                if (permittedResults.isEmpty()) {
-                    return;
+                if (client.hasDisavowedLocation && mLocationDenylistPredicate.test(scanResult)) {
+                    continue;
                 }
+                permittedResults.add(scanResult);
             }
-
-            if (client.hasDisavowedLocation) {
-                permittedResults.removeIf(mLocationDenylistPredicate);
+            if (!hasPermission && permittedResults.isEmpty()) {
+                return;
             }
 
-            if (app.callback != null) {
-                app.callback.onBatchScanResults(permittedResults);
-            } else {
-                // PendingIntent based
-                try {
-                    sendResultsByPendingIntent(app.info, permittedResults,
-                            ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                } catch (PendingIntent.CanceledException e) {
-                }
+            try {
+                sendBatchScanResultChunks(app, permittedResults);
+            } catch (PendingIntent.CanceledException e) {
             }
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
+            deliverFullBatchScan(parser);
+        }
+    }
+
+    // Check if the current batch record comes from a device associated with the client.
+    private static boolean isAssociatedDevice(ScanClient client, BatchScanReportParser parser) {
+        for (String associatedDevice : client.associatedDevices) {
+            if (parser.isAddress(associatedDevice)) {
+                return true;
             }
         }
+        return false;
     }
 
     private void sendBatchScanResults(ScannerMap.App app, ScanClient client,
             ArrayList<ScanResult> results) {
         try {
-            if (app.callback != null) {
-                app.callback.onBatchScanResults(results);
-            } else {
-                sendResultsByPendingIntent(app.info, results,
-                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-            }
+            sendBatchScanResultChunks(app, results);
         } catch (RemoteException | PendingIntent.CanceledException e) {
             Log.e(TAG, "Exception: " + e);
             mScannerMap.remove(client.scannerId);
@@ -1955,78 +2035,98 @@ public class GattService extends ProfileService {
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
-            throws RemoteException {
-        ScannerMap.App app = mScannerMap.getById(client.scannerId);
-        if (app == null) {
-            return;
-        }
-
-        ArrayList<ScanResult> permittedResults;
-        if (hasScanResultPermission(client)) {
-            permittedResults = new ArrayList<ScanResult>(allResults);
-        } else {
-            permittedResults = new ArrayList<ScanResult>();
-            for (ScanResult scanResult : allResults) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(scanResult.getDevice().getAddress())) {
-                        permittedResults.add(scanResult);
-                    }
+    // Send batch scan results split into chunks that fit the binder transaction budget.
+    private void sendBatchScanResultChunks(ScannerMap.App app, ArrayList<ScanResult> results)
+            throws RemoteException, PendingIntent.CanceledException {
+        int start = 0;
+        do {
+            int end = start;
+            int chunkBytes = 0;
+            while (end < results.size()) {
+                int resultBytes = estimateParcelSize(results.get(end));
+                if (end > start && chunkBytes + resultBytes > BATCH_SCAN_RESULTS_BYTES_BUDGET) {
+                    break;
                 }
+                chunkBytes += resultBytes;
+                end++;
             }
-            if (permittedResults.isEmpty()) {
-                return;
+            ArrayList<ScanResult> chunk = (start == 0 && end == results.size()) ? results
+                    : new ArrayList<ScanResult>(results.subList(start, end));
+            if (app.callback != null) {
+                app.callback.onBatchScanResults(chunk);
+            } else {
+                // PendingIntent based
+                sendResultsByPendingIntent(app.info, chunk,
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
             }
-        }
+            start = end;
+        } while (start < results.size());
+    }
 
-        if (client.filters == null || client.filters.isEmpty()) {
-            sendBatchScanResults(app, client, permittedResults);
-            // TODO: Question to reviewer: Shouldn't there be a return here?
-        }
-        // Reconstruct the scan results.
-        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : permittedResults) {
-            if (matchesFilters(client, scanResult).getMatches()) {
-                results.add(scanResult);
-            }
-        }
-        sendBatchScanResults(app, client, results);
+    private static int estimateParcelSize(ScanResult result) {
+        ScanRecord scanRecord = result.getScanRecord();
+        byte[] bytes = scanRecord == null ? null : scanRecord.getBytes();
+        return SCAN_RESULT_PARCEL_OVERHEAD_BYTES + (bytes == null ? 0 : bytes.length);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        if (DBG) {
-            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
+    // Partition the results of a full batch scan report into per client lists in a single
+    // pass over the records, and deliver them to each client. Records identical to an earlier
+    // one of the report are delivered once.
+    private void deliverFullBatchScan(BatchScanReportParser parser) {
+        ScanFilterIndex filterIndex = mScanManager.getScanFilterIndex();
+        ArrayList<BatchScanDelivery> deliveries = new ArrayList<BatchScanDelivery>();
+        for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
+            ScannerMap.App app = mScannerMap.getById(client.scannerId);
+            if (app == null) {
+                continue;
+            }
+            deliveries.add(new BatchScanDelivery(client, app, hasScanResultPermission(client),
+                    filterIndex.isIndexed(client)));
         }
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+        if (deliveries.isEmpty()) {
+            return;
         }
-    }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
+        Set<ScanResult> seenResults = new HashSet<ScanResult>();
+        while (parser.next()) {
+            ScanResult scanResult = null;
+            SparseIntArray matches = null;
+            for (BatchScanDelivery delivery : deliveries) {
+                if (!delivery.hasPermission && !isAssociatedDevice(delivery.client, parser)) {
+                    continue;
+                }
+                delivery.hasPermittedRecords = true;
+                if (scanResult == null) {
+                    // Build the result once and share it with all clients.
+                    scanResult = parser.toScanResult(getAnonymousDevice(parser.getAddress()));
+                    if (!seenResults.add(scanResult)) {
+                        // Already delivered with the first copy of the record.
+                        break;
+                    }
+                }
+                boolean isMatch;
+                if (delivery.isIndexed) {
+                    if (matches == null) {
+                        matches = filterIndex.match(scanResult, null);
+                    }
+                    isMatch = matches.get(delivery.client.scannerId, ScanFilterIndex.NO_MATCH)
+                            != ScanFilterIndex.NO_MATCH;
+                } else {
+                    isMatch = matchesFilters(delivery.client, scanResult).getMatches();
+                }
+                if (isMatch) {
+                    delivery.results.add(scanResult);
+                }
+            }
         }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = getAnonymousDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+
+        for (BatchScanDelivery delivery : deliveries) {
+            // Clients without scan result permission only hear about their associated devices.
+            if (!delivery.hasPermission && !delivery.hasPermittedRecords) {
+                continue;
+            }
+            sendBatchScanResults(delivery.app, delivery.client, delivery.results);
         }
-        return results;
     }
 
     @VisibleForTesting
@@ -2036,64 +2136,6 @@ public class GattService extends ProfileService {
         return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
     }
 
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = getAnonymousDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
-    }
-
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
     void onBatchScanThresholdCrossed(int clientIf) {
         if (DBG) {
@@ -2210,16 +2252,12 @@ public class GattService extends ProfileService {
         if (VDBG) {
             Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
         }
-
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
             app.isCongested = congested;
-            while (!app.isCongested) {
-                CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null) {
-                    return;
-                }
+            CallbackInfo callbackInfo = new CallbackInfo(null, 0);
+            while (!app.isCongested && app.pollQueuedCallback(callbackInfo)) {
                 app.callback.onCharacteristicWrite(callbackInfo.address, callbackInfo.status,
                         callbackInfo.handle);
             }
@@ -2834,7 +2872,7 @@ public class GattService extends ProfileService {
             return new ArrayList<>(0);
         }
         List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
-        for (HandleMap.Entry entry : mHandleMap.mEntries) {
+        for (HandleMap.Entry entry : mHandleMap.getEntries()) {
             serviceUuids.add(new ParcelUuid(entry.uuid));
         }
         return serviceUuids;
@@ -3210,7 +3248,7 @@ public class GattService extends ProfileService {
         }
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            app.setId(serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -3298,6 +3336,7 @@ public class GattService extends ProfileService {
             mServerMap.addConnection(serverIf, connId, address);
         } else {
             mServerMap.removeConnection(serverIf, connId);
+            mServerNotificationQueue.remove(connId);
         }
 
         app.callback.onServerConnectionState((byte) 0, serverIf, connected, address);
@@ -3422,6 +3461,8 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onNotificationSent() connId=" + connId + ", status=" + status);
         }
 
+        mServerNotificationQueue.onSent(connId, SystemClock.elapsedRealtime());
+
         String address = mServerMap.addressByConnId(connId);
         if (address == null) {
             return;
@@ -3438,7 +3479,7 @@ public class GattService extends ProfileService {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
-            app.queueCallback(new CallbackInfo(address, status));
+            app.queueCallback(address, status, 0);
         }
     }
 
@@ -3447,17 +3488,16 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
         }
 
+        mServerNotificationQueue.setCongested(connId, congested, SystemClock.elapsedRealtime());
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) {
             return;
         }
 
         app.isCongested = congested;
-        while (!app.isCongested) {
-            CallbackInfo callbackInfo = app.popQueuedCallback();
-            if (callbackInfo == null) {
-                return;
-            }
+        CallbackInfo callbackInfo = new CallbackInfo(null, 0);
+        while (!app.isCongested && app.pollQueuedCallback(callbackInfo)) {
             app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
         }
     }
@@ -3703,13 +3743,90 @@ public class GattService extends ProfileService {
             return;
         }
 
-        if (confirm) {
-            gattServerSendIndicationNative(serverIf, handle, connId, value);
-        } else {
-            gattServerSendNotificationNative(serverIf, handle, connId, value);
+        queueServerNotification(serverIf, address, connId, handle, confirm, value);
+    }
+
+    /**
+     * Sends several values of the same attribute with a single permission check and a single
+     * pass through the outbound queue. The values go out in order, paced by the congestion
+     * state of the connection; values that do not fit into the queue complete with
+     * GATT_FAILURE.
+     */
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    void sendNotifications(int serverIf, String address, int handle, boolean confirm,
+            List<byte[]> values, AttributionSource attributionSource) {
+        if (!Utils.checkConnectPermissionForDataDelivery(
+                this, attributionSource, "GattService sendNotifications")) {
+            return;
+        }
+
+        if (VDBG) {
+            Log.d(TAG, "sendNotifications() - address=" + address + " handle=" + handle
+                    + " count=" + values.size());
+        }
+
+        Integer connId = mServerMap.connIdByAddress(serverIf, address);
+        if (connId == null || connId == 0) {
+            return;
+        }
+
+        int queued = mServerNotificationQueue.offerAll(serverIf, connId, handle, confirm, values,
+                SystemClock.elapsedRealtime());
+        if (queued == values.size()) {
+            return;
+        }
+        Log.w(TAG, "sendNotifications() - queue full, dropping " + (values.size() - queued)
+                + " notifications for connId=" + connId);
+        for (int i = queued; i < values.size(); i++) {
+            reportNotificationFailure(serverIf, address);
         }
     }
 
+    private void queueServerNotification(int serverIf, String address, int connId, int handle,
+            boolean confirm, byte[] value) {
+        if (mServerNotificationQueue.offer(serverIf, connId, handle, confirm, value,
+                SystemClock.elapsedRealtime())) {
+            return;
+        }
+        Log.w(TAG, "sendNotification() - queue full, dropping notification for connId="
+                + connId);
+        reportNotificationFailure(serverIf, address);
+    }
+
+    // Completes a value that never reaches the stack, so apps waiting for onNotificationSent
+    // keep going.
+    private void reportNotificationFailure(int serverIf, String address) {
+        ServerMap.App app = mServerMap.getById(serverIf);
+        if (app == null) {
+            return;
+        }
+        if (app.isCongested) {
+            app.queueCallback(address, BluetoothGatt.GATT_FAILURE, 0);
+            return;
+        }
+        try {
+            app.callback.onNotificationSent(address, BluetoothGatt.GATT_FAILURE);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+        }
+    }
+
+    private boolean sendServerNotification(int serverIf, int connId, int handle, boolean confirm,
+            byte[] value) {
+        boolean sent = confirm
+                ? gattServerSendIndicationNative(serverIf, handle, connId, value)
+                : gattServerSendNotificationNative(serverIf, handle, connId, value);
+        if (!sent) {
+            Log.w(TAG, "sendNotification() - stack rejected notification for connId="
+                    + connId);
+            String address = mServerMap.addressByConnId(connId);
+            if (address != null) {
+                reportNotificationFailure(serverIf, address);
+            }
+        }
+        return sent;
+    }
+
 
     /**************************************************************************
      * Private functions
@@ -3951,6 +4068,19 @@ public class GattService extends ProfileService {
 
         sb.append("GATT Handle Map\n");
         mHandleMap.dump(sb);
+
+        if (mScanManager != null) {
+            sb.append("GATT Scan Filters\n");
+            mScanManager.dumpScanFilters(sb);
+        }
+
+        sb.append("GATT Server Notification Queue\n");
+        mServerNotificationQueue.dump(sb);
+
+        if (mPeriodicScanManager != null) {
+            sb.append("Periodic Advertising Syncs\n");
+            mPeriodicScanManager.dump(sb);
+        }
     }
 
     void addScanEvent(BluetoothMetricsProto.ScanEvent event) {
@@ -4071,11 +4201,11 @@ public class GattService extends ProfileService {
 
     private native void gattServerDeleteServiceNative(int serverIf, int svcHandle);
 
-    private native void gattServerSendIndicationNative(int serverIf, int attrHandle, int connId,
-            byte[] val);
+    private native boolean gattServerSendIndicationNative(int serverIf, int attrHandle,
+            int connId, byte[] val);
 
-    private native void gattServerSendNotificationNative(int serverIf, int attrHandle, int connId,
-            byte[] val);
+    private native boolean gattServerSendNotificationNative(int serverIf, int attrHandle,
+            int connId, byte[] val);
 
     private native void gattServerSendResponseNative(int serverIf, int connId, int transId,
             int status, int handle, int offset, byte[] val, int authReq);
@@ -16,10 +16,10 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -33,6 +33,10 @@ class HandleMap {
     public static final int TYPE_CHARACTERISTIC = 2;
     public static final int TYPE_DESCRIPTOR = 3;
 
+    // Upper bound of outstanding server requests. Requests the app never answered are
+    // reclaimed oldest first once it is reached.
+    private static final int MAX_PENDING_REQUESTS = 256;
+
     class Entry {
         public int serverIf = 0;
         public int type = TYPE_UNDEFINED;
@@ -83,81 +87,124 @@ class HandleMap {
         }
     }
 
-    List<Entry> mEntries = null;
+    // Entries in insertion order, keyed by attribute handle.
+    Map<Integer, Entry> mEntries = null;
+    // Same entries for lookups by handle without boxing.
+    SparseArray<Entry> mEntriesByHandle = null;
+    // Entries of each service, the service entry included, keyed by service handle.
+    SparseArray<List<Entry>> mServiceEntries = null;
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
+    int mReclaimedRequests = 0;
 
     HandleMap() {
-        mEntries = new ArrayList<Entry>();
-        mRequestMap = new HashMap<Integer, Integer>();
+        mEntries = new LinkedHashMap<Integer, Entry>();
+        mEntriesByHandle = new SparseArray<Entry>();
+        mServiceEntries = new SparseArray<List<Entry>>();
+        mRequestMap = new LinkedHashMap<Integer, Integer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                if (size() <= MAX_PENDING_REQUESTS) {
+                    return false;
+                }
+                Log.w(TAG, "Reclaiming unanswered request " + eldest.getKey() + " for handle "
+                        + eldest.getValue());
+                mReclaimedRequests++;
+                return true;
+            }
+        };
     }
 
     void clear() {
         mEntries.clear();
+        mEntriesByHandle.clear();
+        mServiceEntries.clear();
         mRequestMap.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred),
+                handle);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle),
+                serviceHandle);
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
-                mLastCharacteristic));
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+                mLastCharacteristic), serviceHandle);
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
+    private void addEntry(Entry entry, int serviceHandle) {
+        Entry stale = mEntriesByHandle.get(entry.handle);
+        if (stale != null) {
+            Log.w(TAG, "addEntry() - Replacing stale entry for handle " + entry.handle);
+            List<Entry> staleServiceEntries = mServiceEntries.get(
+                    stale.type == TYPE_SERVICE ? stale.handle : stale.serviceHandle);
+            if (staleServiceEntries != null) {
+                staleServiceEntries.remove(stale);
             }
+            mEntries.remove(entry.handle);
+        }
+        mEntries.put(entry.handle, entry);
+        mEntriesByHandle.put(entry.handle, entry);
+        List<Entry> serviceEntries = mServiceEntries.get(serviceHandle);
+        if (serviceEntries == null) {
+            serviceEntries = new ArrayList<Entry>();
+            mServiceEntries.put(serviceHandle, serviceEntries);
+        }
+        serviceEntries.add(entry);
+    }
 
-            entry.started = started;
+    void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
             return;
         }
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
-                return true;
-            }
-        }
-        return false;
+        Entry entry = mEntriesByHandle.get(handle);
+        return entry != null && entry.type == TYPE_SERVICE && entry.uuid.equals(uuid);
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext(); ) {
-            Entry entry = it.next();
+        List<Entry> serviceEntries = mServiceEntries.get(serviceHandle);
+        if (serviceEntries == null) {
+            return;
+        }
+        List<Entry> remaining = new ArrayList<Entry>();
+        for (Entry entry : serviceEntries) {
             if (entry.serverIf != serverIf) {
+                remaining.add(entry);
                 continue;
             }
-
-            if (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle) {
-                it.remove();
-            }
+            mEntries.remove(entry.handle);
+            mEntriesByHandle.remove(entry.handle);
+        }
+        if (remaining.isEmpty()) {
+            mServiceEntries.remove(serviceHandle);
+        } else {
+            mServiceEntries.put(serviceHandle, remaining);
         }
     }
 
     List<Entry> getEntries() {
-        return mEntries;
+        return new ArrayList<Entry>(mEntries.values());
     }
 
     void addRequest(int requestId, int handle) {
@@ -184,8 +231,9 @@ class HandleMap {
     void dump(StringBuilder sb) {
         sb.append("  Entries: " + mEntries.size() + "\n");
         sb.append("  Requests: " + mRequestMap.size() + "\n");
+        sb.append("  Reclaimed requests: " + mReclaimedRequests + "\n");
 
-        for (Entry entry : mEntries) {
+        for (Entry entry : mEntries.values()) {
             sb.append("  " + entry.serverIf + ": [" + entry.handle + "] ");
             switch (entry.type) {
                 case TYPE_SERVICE:
@@ -23,12 +23,16 @@ import android.bluetooth.le.ScanResult;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.bluetooth.btservice.AdapterService;
 import android.bluetooth.BluetoothAdapter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import android.bluetooth.BluetoothDevice;
 import java.util.concurrent.ConcurrentHashMap;
@@ -49,6 +53,43 @@ class PeriodicScanManager {
     static int sTempRegistrationId = -1;
     private int PA_SOURCE_LOCAL = 1;
     private int PA_SOURCE_REMOTE = 2;
+
+    /**
+     * Callbacks synced to the same periodic advertising train, together with the report
+     * statistics of the train.
+     */
+    private static class SyncDispatch {
+        public final IPeriodicAdvertisingCallback[] callbacks;
+        public final ReportStats stats;
+
+        SyncDispatch(IPeriodicAdvertisingCallback[] callbacks, ReportStats stats) {
+            this.callbacks = callbacks;
+            this.stats = stats;
+        }
+    }
+
+    private static class ReportStats {
+        // Only updated from the stack callback thread.
+        public volatile long reports;
+        public volatile long firstReportMillis;
+        public volatile long lastReportMillis;
+
+        void onReport() {
+            long now = SystemClock.elapsedRealtime();
+            if (reports == 0) {
+                firstReportMillis = now;
+            }
+            lastReportMillis = now;
+            reports++;
+        }
+    }
+
+    /**
+     * Index of mSyncs by sync handle, or by registration id while the sync is pending. It is
+     * rebuilt under the mSyncs lock whenever mSyncs changes, so report dispatch neither scans
+     * nor allocates.
+     */
+    private volatile SparseArray<SyncDispatch> mDispatchIndex = new SparseArray<>();
     /**
      * Constructor of {@link SyncManager}.
      */
@@ -69,7 +110,10 @@ class PeriodicScanManager {
             Log.d(TAG, "cleanup()");
         }
         cleanupNative();
-        mSyncs.clear();
+        synchronized (mSyncs) {
+            mSyncs.clear();
+            rebuildDispatchIndex();
+        }
         sTempRegistrationId = -1;
     }
 
@@ -156,16 +200,30 @@ class PeriodicScanManager {
         }
         return entry;
     }
-    Map<IBinder, SyncInfo> findAllSync(int syncHandle) {
-        Map <IBinder, SyncInfo> syncMap = new HashMap<IBinder, SyncInfo>();
-        for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-            if (e.getValue().id == syncHandle) {
-                syncMap.put(e.getKey(),new SyncInfo(e.getValue().id, e.getValue().adv_sid, e.getValue().address,
-                e.getValue().skip, e.getValue().timeout, e.getValue().deathRecipient, e.getValue().callback));
+
+    // Must be called with the mSyncs lock held after every change of mSyncs.
+    private void rebuildDispatchIndex() {
+        SparseArray<SyncDispatch> oldIndex = mDispatchIndex;
+        SparseArray<List<IPeriodicAdvertisingCallback>> callbacks = new SparseArray<>();
+        for (SyncInfo sync : mSyncs.values()) {
+            List<IPeriodicAdvertisingCallback> syncCallbacks = callbacks.get(sync.id);
+            if (syncCallbacks == null) {
+                syncCallbacks = new ArrayList<>();
+                callbacks.put(sync.id, syncCallbacks);
             }
+            syncCallbacks.add(sync.callback);
+        }
+        SparseArray<SyncDispatch> index = new SparseArray<>(callbacks.size());
+        for (int i = 0; i < callbacks.size(); i++) {
+            int id = callbacks.keyAt(i);
+            SyncDispatch old = oldIndex.get(id);
+            index.put(id, new SyncDispatch(
+                    callbacks.valueAt(i).toArray(new IPeriodicAdvertisingCallback[0]),
+                    old != null ? old.stats : new ReportStats()));
         }
-        return syncMap;
+        mDispatchIndex = index;
     }
+
     void onSyncStarted(int regId, int syncHandle, int sid, int addressType, String address, int phy,
             int interval, int status) throws Exception {
         if (DBG) {
@@ -173,31 +231,37 @@ class PeriodicScanManager {
                     "onSyncStarted() - regId=" + regId + ", syncHandle=" + syncHandle + ", status="
                             + status);
         }
-        Map<IBinder, SyncInfo> syncMap = findAllSync(regId);
-        if (syncMap.size() == 0) {
+        if (mDispatchIndex.get(regId) == null) {
             Log.d(TAG,"onSyncStarted() - no callback found for regId " + regId);
             stopSyncNative(syncHandle);
             return;
         }
 
         synchronized (mSyncs) {
-            for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-                if (e.getValue().id == regId) {
-                    IPeriodicAdvertisingCallback callback = e.getValue().callback;
-                    if (status == 0) {
-                        Log.d(TAG,"onSyncStarted: updating id with syncHandle " + syncHandle);
-                        e.setValue(new SyncInfo(syncHandle, sid, address, e.getValue().skip,
-                            e.getValue().timeout, e.getValue().deathRecipient, callback));
-                        callback.onSyncEstablished(syncHandle, mAdapter.getRemoteDevice(address),
-                                           sid, e.getValue().skip, e.getValue().timeout, status);
-                    } else {
-                        callback.onSyncEstablished(syncHandle, mAdapter.getRemoteDevice(address),
-                                           sid, e.getValue().skip, e.getValue().timeout, status);
-                        IBinder binder = e.getKey();
-                        binder.unlinkToDeath(e.getValue().deathRecipient, 0);
-                        mSyncs.remove(binder);
+            try {
+                for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
+                    if (e.getValue().id == regId) {
+                        IPeriodicAdvertisingCallback callback = e.getValue().callback;
+                        if (status == 0) {
+                            Log.d(TAG,"onSyncStarted: updating id with syncHandle " + syncHandle);
+                            e.setValue(new SyncInfo(syncHandle, sid, address, e.getValue().skip,
+                                e.getValue().timeout, e.getValue().deathRecipient, callback));
+                            callback.onSyncEstablished(syncHandle,
+                                    mAdapter.getRemoteDevice(address), sid, e.getValue().skip,
+                                    e.getValue().timeout, status);
+                        } else {
+                            callback.onSyncEstablished(syncHandle,
+                                    mAdapter.getRemoteDevice(address), sid, e.getValue().skip,
+                                    e.getValue().timeout, status);
+                            IBinder binder = e.getKey();
+                            binder.unlinkToDeath(e.getValue().deathRecipient, 0);
+                            mSyncs.remove(binder);
+                        }
                     }
                 }
+            } finally {
+                // The callbacks may throw, keep the index in line with the changes made so far.
+                rebuildDispatchIndex();
             }
         }
     }
@@ -207,16 +271,18 @@ class PeriodicScanManager {
             Log.d(TAG, "onSyncReport() - syncHandle=" + syncHandle);
         }
 
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.size() == 0) {
+        SyncDispatch dispatch = mDispatchIndex.get(syncHandle);
+        if (dispatch == null) {
             Log.i(TAG, "onSyncReport() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            PeriodicAdvertisingReport report =
-                    new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
-                            ScanRecord.parseFromBytes(data));
+        dispatch.stats.onReport();
+        // The report is only read while it is written to the binder, so one is enough for all
+        // callbacks.
+        PeriodicAdvertisingReport report =
+                new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
+                        ScanRecord.parseFromBytes(data));
+        for (IPeriodicAdvertisingCallback callback : dispatch.callbacks) {
             callback.onPeriodicAdvertisingReport(report);
         }
     }
@@ -225,19 +291,19 @@ class PeriodicScanManager {
         if (DBG) {
             Log.d(TAG, "onSyncLost() - syncHandle=" + syncHandle);
         }
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.size() == 0) {
+        SyncDispatch dispatch = mDispatchIndex.get(syncHandle);
+        if (dispatch == null) {
             Log.i(TAG, "onSyncLost() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            IBinder binder = toBinder(callback);
-            synchronized(mSyncs) {
-                mSyncs.remove(binder);
+        synchronized (mSyncs) {
+            for (IPeriodicAdvertisingCallback callback : dispatch.callbacks) {
+                mSyncs.remove(toBinder(callback));
             }
+            rebuildDispatchIndex();
+        }
+        for (IPeriodicAdvertisingCallback callback : dispatch.callbacks) {
             callback.onSyncLost(syncHandle);
-
         }
     }
 
@@ -265,6 +331,7 @@ class PeriodicScanManager {
                 }
                 mSyncs.put(binder, new SyncInfo(entry.getValue().id, sid, address, entry.getValue().skip,
                            entry.getValue().timeout, deathRecipient, callback));
+                rebuildDispatchIndex();
                 if (entry.getValue().id >= 0) {
                     try {
                         callback.onSyncEstablished(entry.getValue().id, mAdapter.getRemoteDevice(address),
@@ -280,7 +347,11 @@ class PeriodicScanManager {
         }
 
         int cbId = --sTempRegistrationId;
-        mSyncs.put(binder, new SyncInfo(cbId, sid, address, skip, timeout, deathRecipient, callback));
+        synchronized (mSyncs) {
+            mSyncs.put(binder,
+                    new SyncInfo(cbId, sid, address, skip, timeout, deathRecipient, callback));
+            rebuildDispatchIndex();
+        }
 
         if (DBG) {
             Log.d(TAG, "startSync() - reg_id=" + cbId + ", callback: " + binder);
@@ -296,6 +367,9 @@ class PeriodicScanManager {
         SyncInfo sync = null;
         synchronized(mSyncs) {
             sync = mSyncs.remove(binder);
+            if (sync != null) {
+                rebuildDispatchIndex();
+            }
         }
         if (sync == null) {
             Log.e(TAG, "stopSync() - no client found for callback");
@@ -306,12 +380,9 @@ class PeriodicScanManager {
         binder.unlinkToDeath(sync.deathRecipient, 0);
         Log.d(TAG,"stopSync: " + syncHandle);
 
-        synchronized(mSyncs) {
-            Map.Entry<IBinder, SyncInfo> entry = findSync(syncHandle);
-            if (entry != null) {
-                Log.d(TAG,"stopSync() - another app synced to same PA, not stopping sync");
-                return;
-            }
+        if (mDispatchIndex.get(syncHandle) != null) {
+            Log.d(TAG,"stopSync() - another app synced to same PA, not stopping sync");
+            return;
         }
         Log.d(TAG,"calling stopSyncNative: " + syncHandle.intValue());
         if (syncHandle < 0) {
@@ -362,6 +433,27 @@ class PeriodicScanManager {
         TransferSetInfoNative(PA_SOURCE_LOCAL, bda.getAddress(), service_data, adv_handle);
     }
 
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        SparseArray<SyncDispatch> index = mDispatchIndex;
+        sb.append("  Syncs: " + index.size() + "\n");
+        for (int i = 0; i < index.size(); i++) {
+            SyncDispatch dispatch = index.valueAt(i);
+            ReportStats stats = dispatch.stats;
+            long reports = stats.reports;
+            sb.append("  syncHandle: " + index.keyAt(i) + "  callbacks: "
+                    + dispatch.callbacks.length + "  reports: " + reports);
+            long elapsedMillis = stats.lastReportMillis - stats.firstReportMillis;
+            if (reports > 1 && elapsedMillis > 0) {
+                sb.append("  rate: " + String.format("%.1f", (reports - 1) * 1000.0 / elapsedMillis)
+                        + "/s");
+            }
+            sb.append("\n");
+        }
+    }
+
     static {
         classInitNative();
     }
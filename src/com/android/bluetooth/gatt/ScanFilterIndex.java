@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compiled index of the scan filters of all active scan clients.
+ *
+ * Each {@link ScanFilter} is stored under the most selective field it requires: device
+ * address, manufacturer id, service data UUID or service UUID. A lookup only evaluates
+ * the filters stored under the keys present in an advertisement, plus the filters that
+ * have none of those fields, instead of every filter of every client.
+ *
+ * The index is rebuilt on the scan manager thread whenever a client is added or removed
+ * and published as an immutable snapshot, so lookups from the scan result callback
+ * thread never take a lock.
+ * @hide
+ */
+/*package*/ class ScanFilterIndex {
+    // Match origins reported by match(), mirroring GattService.MatchOrigin.
+    static final int NO_MATCH = 0;
+    static final int MATCH_PSEUDO_ADDRESS = 1;
+    static final int MATCH_ORIGINAL_ADDRESS = 2;
+
+    private static class Entry {
+        public final int scannerId;
+        // Position of the filter in the client's filter list.
+        public final int position;
+        public final ScanFilter filter;
+
+        Entry(int scannerId, int position, ScanFilter filter) {
+            this.scannerId = scannerId;
+            this.position = position;
+            this.filter = filter;
+        }
+    }
+
+    private static class Snapshot {
+        public final SparseArray<List<ScanFilter>> clientFilters;
+        public final List<Integer> matchAllScanners = new ArrayList<>();
+        public final List<Entry> allEntries = new ArrayList<>();
+        public final Map<String, List<Entry>> byAddress = new HashMap<>();
+        public final SparseArray<List<Entry>> byManufacturerId = new SparseArray<>();
+        public final Map<ParcelUuid, List<Entry>> byServiceDataUuid = new HashMap<>();
+        public final Map<ParcelUuid, List<Entry>> byServiceUuid = new HashMap<>();
+        public final List<Entry> unindexed = new ArrayList<>();
+
+        Snapshot(SparseArray<List<ScanFilter>> clientFilters) {
+            this.clientFilters = clientFilters;
+            for (int i = 0; i < clientFilters.size(); i++) {
+                int scannerId = clientFilters.keyAt(i);
+                List<ScanFilter> filters = clientFilters.valueAt(i);
+                if (filters == null || filters.isEmpty()) {
+                    matchAllScanners.add(scannerId);
+                    continue;
+                }
+                for (int position = 0; position < filters.size(); position++) {
+                    add(new Entry(scannerId, position, filters.get(position)));
+                }
+            }
+        }
+
+        private void add(Entry entry) {
+            ScanFilter filter = entry.filter;
+            allEntries.add(entry);
+            if (filter.getDeviceAddress() != null) {
+                addTo(byAddress, normalizeAddress(filter.getDeviceAddress()), entry);
+            } else if (filter.getManufacturerId() >= 0) {
+                List<Entry> entries = byManufacturerId.get(filter.getManufacturerId());
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    byManufacturerId.put(filter.getManufacturerId(), entries);
+                }
+                entries.add(entry);
+            } else if (filter.getServiceDataUuid() != null) {
+                addTo(byServiceDataUuid, filter.getServiceDataUuid(), entry);
+            } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+                addTo(byServiceUuid, filter.getServiceUuid(), entry);
+            } else {
+                unindexed.add(entry);
+            }
+        }
+
+        private static <K> void addTo(Map<K, List<Entry>> map, K key, Entry entry) {
+            List<Entry> entries = map.get(key);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                map.put(key, entries);
+            }
+            entries.add(entry);
+        }
+    }
+
+    // Only modified on the scan manager thread.
+    private final SparseArray<List<ScanFilter>> mClientFilters = new SparseArray<>();
+    private volatile Snapshot mSnapshot = new Snapshot(new SparseArray<>());
+
+    /**
+     * Adds or replaces the filters of a scan client.
+     */
+    void addScanClient(ScanClient client) {
+        mClientFilters.put(client.scannerId, client.filters);
+        publish();
+    }
+
+    /**
+     * Removes the filters of a scan client.
+     */
+    void removeScanClient(int scannerId) {
+        if (mClientFilters.indexOfKey(scannerId) < 0) {
+            return;
+        }
+        mClientFilters.remove(scannerId);
+        publish();
+    }
+
+    void clear() {
+        mClientFilters.clear();
+        publish();
+    }
+
+    /**
+     * Returns true if the current filters of the client are covered by the index, so the
+     * result of {@link #match} can be used for it.
+     */
+    boolean isIndexed(ScanClient client) {
+        SparseArray<List<ScanFilter>> clientFilters = mSnapshot.clientFilters;
+        int index = clientFilters.indexOfKey(client.scannerId);
+        return index >= 0 && clientFilters.valueAt(index) == client.filters;
+    }
+
+    /**
+     * Finds the scanners whose filters match the given scan result.
+     *
+     * As with the linear filter check, the first filter of a client in list order decides
+     * whether the match came from the pseudo address or from the original address.
+     *
+     * @return scanner id to match origin, absent scanners did not match
+     */
+    SparseIntArray match(ScanResult result, String originalAddress) {
+        Snapshot snapshot = mSnapshot;
+        SparseIntArray matches = new SparseIntArray();
+        SparseIntArray positions = new SparseIntArray();
+
+        for (int i = 0; i < snapshot.matchAllScanners.size(); i++) {
+            matches.put(snapshot.matchAllScanners.get(i), MATCH_PSEUDO_ADDRESS);
+            positions.put(snapshot.matchAllScanners.get(i), -1);
+        }
+
+        ScanRecord record = result.getScanRecord();
+        if (record == null) {
+            // Without a record the record based fields are not checked, so any filter can match.
+            matchEntries(snapshot.allEntries, result, matches, positions);
+        } else {
+            BluetoothDevice device = result.getDevice();
+            if (device != null) {
+                matchEntries(snapshot.byAddress.get(device.getAddress()), result, matches,
+                        positions);
+            }
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null) {
+                for (int i = 0; i < manufacturerData.size(); i++) {
+                    matchEntries(snapshot.byManufacturerId.get(manufacturerData.keyAt(i)), result,
+                            matches, positions);
+                }
+            }
+            Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+            if (serviceData != null) {
+                for (ParcelUuid uuid : serviceData.keySet()) {
+                    matchEntries(snapshot.byServiceDataUuid.get(uuid), result, matches,
+                            positions);
+                }
+            }
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    matchEntries(snapshot.byServiceUuid.get(uuid), result, matches, positions);
+                }
+            }
+            matchEntries(snapshot.unindexed, result, matches, positions);
+        }
+
+        if (originalAddress != null) {
+            List<Entry> entries = snapshot.byAddress.get(normalizeAddress(originalAddress));
+            if (entries != null) {
+                for (Entry entry : entries) {
+                    if (originalAddress.equalsIgnoreCase(entry.filter.getDeviceAddress())) {
+                        record(entry, MATCH_ORIGINAL_ADDRESS, matches, positions);
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    int getNumOfScanClients() {
+        return mSnapshot.clientFilters.size();
+    }
+
+    int getNumOfFilters() {
+        return mSnapshot.allEntries.size();
+    }
+
+    int getNumOfUnindexedFilters() {
+        return mSnapshot.unindexed.size();
+    }
+
+    private void publish() {
+        mSnapshot = new Snapshot(mClientFilters.clone());
+    }
+
+    private static void matchEntries(List<Entry> entries, ScanResult result,
+            SparseIntArray matches, SparseIntArray positions) {
+        if (entries == null) {
+            return;
+        }
+        for (Entry entry : entries) {
+            if (supersedes(entry, MATCH_PSEUDO_ADDRESS, matches, positions)
+                    && entry.filter.matches(result)) {
+                record(entry, MATCH_PSEUDO_ADDRESS, matches, positions);
+            }
+        }
+    }
+
+    // Returns true if a match of the entry would take precedence over the current match.
+    private static boolean supersedes(Entry entry, int origin, SparseIntArray matches,
+            SparseIntArray positions) {
+        int index = positions.indexOfKey(entry.scannerId);
+        if (index < 0) {
+            return true;
+        }
+        int position = positions.valueAt(index);
+        if (entry.position != position) {
+            return entry.position < position;
+        }
+        // The pseudo address is checked first for the same filter.
+        return origin == MATCH_PSEUDO_ADDRESS
+                && matches.get(entry.scannerId) != MATCH_PSEUDO_ADDRESS;
+    }
+
+    private static void record(Entry entry, int origin, SparseIntArray matches,
+            SparseIntArray positions) {
+        if (supersedes(entry, origin, matches, positions)) {
+            positions.put(entry.scannerId, entry.position);
+            matches.put(entry.scannerId, origin);
+        }
+    }
+
+    private static String normalizeAddress(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
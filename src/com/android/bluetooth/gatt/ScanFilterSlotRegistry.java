@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Reference counted allocation of the controller scan filter slots.
+ *
+ * A filter programmed with the same payload and the same filter parameters by several
+ * scanners only takes one controller slot. The controller reports a match of a shared slot
+ * once, and the host side filtering hands the result to every scanner whose filters match.
+ * @hide
+ */
+/*package*/ class ScanFilterSlotRegistry {
+    /**
+     * Identifies the controller programming of a filter: its payload and the parameters of
+     * its slot.
+     */
+    static final class Key {
+        private final ScanFilter mFilter;
+        private final int mDeliveryMode;
+        private final int mMatchMode;
+
+        Key(ScanFilter filter, int deliveryMode, int matchMode) {
+            mFilter = filter;
+            mDeliveryMode = deliveryMode;
+            mMatchMode = matchMode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return mDeliveryMode == other.mDeliveryMode && mMatchMode == other.mMatchMode
+                    && Objects.equals(mFilter, other.mFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mFilter, mDeliveryMode, mMatchMode);
+        }
+    }
+
+    /**
+     * A controller filter slot.
+     */
+    static class Slot {
+        public final int filterIndex;
+        // Null for slots that are not shared.
+        public final Key key;
+        public final Set<Integer> scannerIds = new HashSet<>();
+
+        Slot(int filterIndex, Key key) {
+            this.filterIndex = filterIndex;
+            this.key = key;
+        }
+
+        /**
+         * Returns true if the slot was just allocated and still has to be programmed.
+         */
+        boolean isNew() {
+            return scannerIds.size() == 1;
+        }
+    }
+
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<>();
+    private final Map<Key, Slot> mSharedSlots = new HashMap<>();
+    private final Map<Integer, List<Slot>> mClientSlots = new HashMap<>();
+    private boolean mInitialized = false;
+    private int mNumSlots = 0;
+    private long mSharedAcquisitions = 0;
+
+    /**
+     * Makes the filter indices [firstIndex, maxFilters) available. Does nothing if already
+     * initialized.
+     */
+    synchronized void init(int firstIndex, int maxFilters) {
+        if (mInitialized) {
+            return;
+        }
+        for (int i = firstIndex; i < maxFilters; ++i) {
+            mFreeIndices.add(i);
+        }
+        mNumSlots = mFreeIndices.size();
+        mInitialized = true;
+    }
+
+    synchronized void clear() {
+        mFreeIndices.clear();
+        mSharedSlots.clear();
+        mClientSlots.clear();
+        mInitialized = false;
+        mNumSlots = 0;
+    }
+
+    /**
+     * Returns the number of free slots needed to register the given keys; null keys are not
+     * shared.
+     */
+    synchronized int getNumOfSlotsNeeded(List<Key> keys) {
+        Set<Key> newKeys = new HashSet<>();
+        int needed = 0;
+        for (Key key : keys) {
+            if (key == null) {
+                needed++;
+            } else if (!mSharedSlots.containsKey(key) && newKeys.add(key)) {
+                needed++;
+            }
+        }
+        return needed;
+    }
+
+    synchronized int getNumOfFreeSlots() {
+        return mFreeIndices.size();
+    }
+
+    /**
+     * Takes a reference on the slot for the key, allocating it if needed; a null key always
+     * allocates a slot of its own.
+     *
+     * @return the slot, or null if no slot is free
+     */
+    synchronized Slot acquire(int scannerId, Key key) {
+        Slot slot = key != null ? mSharedSlots.get(key) : null;
+        if (slot != null) {
+            if (!slot.scannerIds.add(scannerId)) {
+                // Same filter registered twice by the client; one slot covers both.
+                return slot;
+            }
+            mSharedAcquisitions++;
+        } else {
+            Integer filterIndex = mFreeIndices.poll();
+            if (filterIndex == null) {
+                return null;
+            }
+            slot = new Slot(filterIndex, key);
+            slot.scannerIds.add(scannerId);
+            if (key != null) {
+                mSharedSlots.put(key, slot);
+            }
+        }
+        List<Slot> clientSlots = mClientSlots.get(scannerId);
+        if (clientSlots == null) {
+            clientSlots = new ArrayList<>();
+            mClientSlots.put(scannerId, clientSlots);
+        }
+        clientSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Drops the references of the scanner.
+     *
+     * @return filter indices of the slots no scanner uses any more, to be deleted from the
+     *     controller
+     */
+    synchronized List<Integer> release(int scannerId) {
+        List<Integer> freed = new ArrayList<>();
+        List<Slot> clientSlots = mClientSlots.remove(scannerId);
+        if (clientSlots == null) {
+            return freed;
+        }
+        for (Slot slot : clientSlots) {
+            if (!slot.scannerIds.remove(scannerId) || !slot.scannerIds.isEmpty()) {
+                continue;
+            }
+            if (slot.key != null) {
+                mSharedSlots.remove(slot.key);
+            }
+            mFreeIndices.add(slot.filterIndex);
+            freed.add(slot.filterIndex);
+        }
+        return freed;
+    }
+
+    synchronized boolean hasSlots(int scannerId) {
+        return mClientSlots.containsKey(scannerId);
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        int shared = 0;
+        for (Slot slot : mSharedSlots.values()) {
+            if (slot.scannerIds.size() > 1) {
+                shared++;
+            }
+        }
+        sb.append("  Slots used: " + (mNumSlots - mFreeIndices.size()) + "/" + mNumSlots
+                + ", shared by several scanners: " + shared
+                + ", shared acquisitions: " + mSharedAcquisitions + "\n");
+    }
+}
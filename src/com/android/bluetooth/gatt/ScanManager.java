@@ -45,12 +45,11 @@ import android.view.Display;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -79,6 +78,7 @@ public class ScanManager {
     private static final int MSG_SUSPEND_SCANS = 4;
     private static final int MSG_RESUME_SCANS = 5;
     private static final int MSG_IMPORTANCE_CHANGE = 6;
+    private static final int MSG_FILTER_OPERATION_DONE = 7;
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
 
@@ -100,6 +100,8 @@ public class ScanManager {
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    // Host side index of the scan filters of all started clients.
+    private final ScanFilterIndex mScanFilterIndex = new ScanFilterIndex();
     private HashMap<Integer, Integer> mPriorityMap = new HashMap<Integer, Integer>();
 
     private CountDownLatch mLatch;
@@ -172,6 +174,7 @@ public class ScanManager {
         mRegularScanClients.clear();
         mBatchClients.clear();
         mSuspendedScanClients.clear();
+        mScanFilterIndex.clear();
         mScanNative.cleanup();
 
         if (mActivityManager != null) {
@@ -226,6 +229,24 @@ public class ScanManager {
         return mBatchClients;
     }
 
+    /**
+     * Returns the index of the scan filters of all started scan clients.
+     */
+    ScanFilterIndex getScanFilterIndex() {
+        return mScanFilterIndex;
+    }
+
+    /**
+     * Logs the usage of the controller scan filter slots and the filter command pipeline.
+     */
+    void dumpScanFilters(StringBuilder sb) {
+        ScanNative scanNative = mScanNative;
+        if (scanNative != null) {
+            scanNative.mFilterSlots.dump(sb);
+            scanNative.mFilterOperations.dump(sb);
+        }
+    }
+
     /**
      * Returns a set of full batch scan clients.
      */
@@ -267,6 +288,22 @@ public class ScanManager {
         // TODO: add a callback for scan failure.
     }
 
+    /**
+     * Called when the stack completed a scan filter enable, filter or filter parameter
+     * command. These are not waited for, see {@link FilterOperationQueue}.
+     */
+    void filterOperationDone(int scannerId, int status) {
+        if (DBG) {
+            Log.d(TAG, "filter operation done for scannerId - " + scannerId + " status - "
+                    + status);
+        }
+        final ClientHandler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.obtainMessage(MSG_FILTER_OPERATION_DONE, scannerId, status).sendToTarget();
+    }
+
     private void sendMessage(int what, ScanClient client) {
         final ClientHandler handler = mHandler;
         if (handler == null) {
@@ -315,6 +352,9 @@ public class ScanManager {
                 case MSG_IMPORTANCE_CHANGE:
                     handleImportanceChange((UidImportance) msg.obj);
                     break;
+                case MSG_FILTER_OPERATION_DONE:
+                    mScanNative.mFilterOperations.onCompleted(msg.arg1, msg.arg2);
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -559,10 +599,12 @@ public class ScanManager {
         // The logic is AND for each filter field.
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of scannerId and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices that are available to user, shared by clients with identical filters.
+        // It's sad we need to maintain filter index.
+        private final ScanFilterSlotRegistry mFilterSlots = new ScanFilterSlotRegistry();
+        // Filter commands issued to the stack and not completed yet. They are not waited for:
+        // the stack runs scan commands in order, so a scan started after them uses the filters.
+        private final FilterOperationQueue mFilterOperations = new FilterOperationQueue();
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -571,9 +613,6 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
-
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
             mBatchScanIntervalIntent = PendingIntent.getBroadcast(mService, 0, batchIntent,
@@ -736,12 +775,12 @@ public class ScanManager {
         }
 
         void startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty()
-                    && mClientFilterIndexMap.isEmpty()) {
-                initFilterIndexStack();
-            }
             if (isFilteringSupported()) {
+                initFilterIndexStack();
                 configureScanFilters(client);
+            } else {
+                // Filters are only matched on the host.
+                mScanFilterIndex.addScanClient(client);
             }
             // Start scan native only for the first client.
             if (numRegularScanClients() == 1) {
@@ -760,7 +799,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -928,6 +967,7 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            mScanFilterIndex.removeScanClient(client.scannerId);
             if (numRegularScanClients() == 0) {
                 if (DBG) {
                     Log.d(TAG, "stop scan");
@@ -981,6 +1021,7 @@ public class ScanManager {
 
         void stopBatchScan(ScanClient client) {
             mBatchClients.remove(client);
+            mScanFilterIndex.removeScanClient(client.scannerId);
             removeScanFilters(client.scannerId);
             if (!isOpportunisticScanClient(client)) {
                 resetBatchScan(client);
@@ -1013,6 +1054,7 @@ public class ScanManager {
                 mService.unregisterReceiver(mBatchAlarmReceiver);
             }
             mBatchAlarmReceiverRegistered = false;
+            mFilterOperations.clear();
         }
 
         private long getBatchTriggerIntervalMillis() {
@@ -1034,6 +1076,9 @@ public class ScanManager {
             int deliveryMode = getDeliveryMode(client);
             int trackEntries = 0;
 
+            // The host side filter index covers every client, offloaded or not.
+            mScanFilterIndex.addScanClient(client);
+
             // Do not add any filters set by opportunistic scan clients
             if (isOpportunisticScanClient(client)) {
                 return;
@@ -1043,32 +1088,40 @@ public class ScanManager {
                 return;
             }
 
-            resetCountDownLatch();
+            mFilterOperations.onIssued(FilterOperationQueue.OP_ENABLE, scannerId, -1);
             gattClientScanFilterEnableNative(scannerId, true);
-            waitForCallback();
 
             if (shouldUseAllPassFilter(client)) {
                 int filterIndex =
                         (deliveryMode == DELIVERY_MODE_BATCH) ? ALL_PASS_FILTER_INDEX_BATCH_SCAN
                                 : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 // Don't allow Onfound/onlost with all pass
                 configureFilterParamter(scannerId, client, ALL_PASS_FILTER_SELECTION, filterIndex,
                         0);
-                waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
+                List<ScanFilterSlotRegistry.Key> keys = getFilterSlotKeys(client, deliveryMode);
+                Set<Integer> programmedIndices = new HashSet<Integer>();
+                for (int i = 0; i < client.filters.size(); i++) {
+                    ScanFilterSlotRegistry.Slot slot =
+                            mFilterSlots.acquire(scannerId, keys.get(i));
+                    if (slot == null) {
+                        Log.e(TAG, "No free scan filter slot for scanner " + scannerId);
+                        break;
+                    }
+                    if (!slot.isNew() || !programmedIndices.add(slot.filterIndex)) {
+                        // Already programmed by another client or for an identical filter.
+                        continue;
+                    }
                     ScanFilterQueue queue = new ScanFilterQueue();
-                    queue.addScanFilter(filter);
+                    queue.addScanFilter(client.filters.get(i));
                     int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
+                    int filterIndex = slot.filterIndex;
 
-                    resetCountDownLatch();
-                    gattClientScanFilterAddNative(scannerId, queue.toArray(), filterIndex);
-                    waitForCallback();
+                    ScanFilterQueue.Entry[] entries = queue.toArray();
+                    mFilterOperations.onIssued(FilterOperationQueue.OP_ADD_FILTER, scannerId,
+                            filterIndex, entries.length);
+                    gattClientScanFilterAddNative(scannerId, entries, filterIndex);
 
-                    resetCountDownLatch();
                     if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
                         trackEntries = getNumOfTrackingAdvertisements(client.settings);
                         if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
@@ -1084,13 +1137,24 @@ public class ScanManager {
                     }
                     configureFilterParamter(scannerId, client, featureSelection, filterIndex,
                             trackEntries);
-                    waitForCallback();
-                    clientFilterIndices.add(filterIndex);
                 }
-                mClientFilterIndexMap.put(scannerId, clientFilterIndices);
             }
         }
 
+        // Returns the slot key of each filter of the client. On found/on lost filters report
+        // their matches to the scanner that programmed them, so they are not shared.
+        private List<ScanFilterSlotRegistry.Key> getFilterSlotKeys(ScanClient client,
+                int deliveryMode) {
+            List<ScanFilterSlotRegistry.Key> keys =
+                    new ArrayList<ScanFilterSlotRegistry.Key>(client.filters.size());
+            int matchMode = client.settings != null ? client.settings.getMatchMode() : 0;
+            for (ScanFilter filter : client.filters) {
+                keys.add(deliveryMode == DELIVERY_MODE_ON_FOUND_LOST ? null
+                        : new ScanFilterSlotRegistry.Key(filter, deliveryMode, matchMode));
+            }
+            return keys;
+        }
+
         // Check whether the filter should be added to controller.
         // Note only on ALL_PASS filter should be added.
         private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
@@ -1109,14 +1173,9 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int scannerId) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(scannerId);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    gattClientScanFilterParamDeleteNative(scannerId, filterIndex);
-                    waitForCallback();
-                }
+            // Slots still used by other clients stay programmed.
+            for (Integer filterIndex : mFilterSlots.release(scannerId)) {
+                deleteFilterParams(scannerId, filterIndex);
             }
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, scannerId,
@@ -1132,12 +1191,16 @@ public class ScanManager {
             clients.remove(scannerId);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
-                gattClientScanFilterParamDeleteNative(scannerId, filterIndex);
-                waitForCallback();
+                deleteFilterParams(scannerId, filterIndex);
             }
         }
 
+        private void deleteFilterParams(int scannerId, int filterIndex) {
+            mFilterOperations.onIssued(FilterOperationQueue.OP_DELETE_PARAMS, scannerId,
+                    filterIndex);
+            gattClientScanFilterParamDeleteNative(scannerId, filterIndex);
+        }
+
         private ScanClient getBatchScanClient(int scannerId) {
             for (ScanClient client : mBatchClients) {
                 if (client.scannerId == scannerId) {
@@ -1171,7 +1234,12 @@ public class ScanManager {
             if (client.filters == null || client.filters.isEmpty()) {
                 return true;
             }
-            return client.filters.size() > mFilterIndexStack.size();
+            if (mFilterSlots.hasSlots(client.scannerId)) {
+                return false;
+            }
+            return mFilterSlots.getNumOfSlotsNeeded(
+                    getFilterSlotKeys(client, getDeliveryMode(client)))
+                    > mFilterSlots.getNumOfFreeSlots();
         }
 
         private void initFilterIndexStack() {
@@ -1181,9 +1249,7 @@ public class ScanManager {
             // index 0 is reserved for ALL_PASS filter in Settings app.
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
-            for (int i = 3; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
-            }
+            mFilterSlots.init(3, maxFiltersSupported);
         }
 
         // Configure filter parameters.
@@ -1204,6 +1270,7 @@ public class ScanManager {
                     new FilterParams(scannerId, filterIndex, featureSelection, LIST_LOGIC_TYPE,
                             FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
                             onFoundTimeout, onLostTimeout, onFoundCount, numOfTrackingEntries);
+            mFilterOperations.onIssued(FilterOperationQueue.OP_ADD_PARAMS, scannerId, filterIndex);
             gattClientScanFilterParamAddNative(filtValue);
         }
 
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.Arrays;
+
+/**
+ * Helper class that holds the parsed form of a single advertisement while it
+ * is dispatched to the registered scanners.
+ *
+ * The legacy (fixed 62 byte) and extended views of the advertising data are
+ * each parsed lazily, at most once, and the resulting {@link ScanResult} is
+ * shared by every scanner that receives it.
+ * @hide
+ */
+/*package*/ class ScanResultCache {
+    // Size of the legacy advertising data plus scan response payload.
+    private static final int LEGACY_ADV_DATA_LEN = 62;
+
+    private final BluetoothDevice mDevice;
+    private final int mEventType;
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mTxPower;
+    private final int mRssi;
+    private final int mPeriodicAdvInt;
+    private final byte[] mAdvData;
+    private final long mTimestampNanos;
+
+    private ScanResult mLegacyResult;
+    private ScanResult mExtendedResult;
+
+    ScanResultCache(BluetoothDevice device, int eventType, int primaryPhy, int secondaryPhy,
+            int advertisingSid, int txPower, int rssi, int periodicAdvInt, byte[] advData,
+            long timestampNanos) {
+        mDevice = device;
+        mEventType = eventType;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAdvData = advData;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * Returns true if the requested view has already been parsed, i.e. the next
+     * call to {@link #getResult(boolean)} for it is served without parsing.
+     */
+    boolean isParsed(boolean legacy) {
+        return legacy ? mLegacyResult != null : mExtendedResult != null;
+    }
+
+    /**
+     * Returns the shared scan result for this advertisement, parsing the
+     * requested view of the advertising data on first use.
+     *
+     * @param legacy true to truncate the data to the legacy fixed size, which
+     *               some applications depend on
+     */
+    ScanResult getResult(boolean legacy) {
+        if (legacy) {
+            if (mLegacyResult == null) {
+                mLegacyResult = buildResult(mDevice, ScanRecord.parseFromBytes(
+                        Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LEN)));
+            }
+            return mLegacyResult;
+        }
+        if (mExtendedResult == null) {
+            mExtendedResult = buildResult(mDevice, ScanRecord.parseFromBytes(mAdvData));
+        }
+        return mExtendedResult;
+    }
+
+    /**
+     * Returns a scan result for the given device that reuses the already parsed
+     * scan record of the requested view.
+     */
+    ScanResult getResultForDevice(BluetoothDevice device, boolean legacy) {
+        return buildResult(device, getResult(legacy).getScanRecord());
+    }
+
+    private ScanResult buildResult(BluetoothDevice device, ScanRecord scanRecord) {
+        return new ScanResult(device, mEventType, mPrimaryPhy, mSecondaryPhy, mAdvertisingSid,
+                mTxPower, mRssi, mPeriodicAdvInt, scanRecord, mTimestampNanos);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.gatt;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Outbound queue of the notifications and indications sent by GATT server apps.
+ *
+ * Each connection keeps at most a bounded number of values in flight in the stack. Further
+ * values wait in a bounded per connection queue and are handed to the stack as earlier ones
+ * complete, and not at all while the connection is congested. Values that do not fit into
+ * the queue are rejected so the caller can report the failure to the app.
+ *
+ * Values the stack refuses do not take a slot. A connection whose values in flight see no
+ * completion within the send timeout gets its slots back, so a lost completion cannot stall
+ * it for good.
+ * @hide
+ */
+/*package*/ class ServerNotificationQueue {
+    /**
+     * Hands a value over to the stack.
+     */
+    interface Sender {
+        /**
+         * @return false if the stack did not accept the value, no completion follows then
+         */
+        boolean send(int serverIf, int connId, int handle, boolean confirm, byte[] value);
+    }
+
+    private static class Entry {
+        public final int serverIf;
+        public final int handle;
+        public final boolean confirm;
+        public final byte[] value;
+
+        Entry(int serverIf, int handle, boolean confirm, byte[] value) {
+            this.serverIf = serverIf;
+            this.handle = handle;
+            this.confirm = confirm;
+            this.value = value;
+        }
+    }
+
+    private static class Connection {
+        public final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        public boolean isCongested;
+        public int inFlight;
+        // Last time a value was handed to the stack or completed.
+        public long lastProgressMillis;
+        public int maxDepth;
+        public long sent;
+        public long dropped;
+        public long failed;
+        public long timeouts;
+    }
+
+    private final Sender mSender;
+    private final int mMaxInFlight;
+    private final int mCapacity;
+    private final long mSendTimeoutMillis;
+
+    private final Object mLock = new Object();
+    private final SparseArray<Connection> mConnections = new SparseArray<Connection>();
+    private long mTotalSent = 0;
+    private long mTotalDropped = 0;
+
+    ServerNotificationQueue(Sender sender, int maxInFlight, int capacity,
+            long sendTimeoutMillis) {
+        mSender = sender;
+        mMaxInFlight = maxInFlight;
+        mCapacity = capacity;
+        mSendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    /**
+     * Queues a value and sends as much of the queue as the connection currently allows.
+     *
+     * @return false if the queue of the connection is full and the value was dropped
+     */
+    boolean offer(int serverIf, int connId, int handle, boolean confirm, byte[] value,
+            long nowMillis) {
+        synchronized (mLock) {
+            Connection connection = getOrCreate(connId);
+            checkTimeout(connId, connection, nowMillis);
+            return offerLocked(serverIf, connId, connection, handle, confirm, value, nowMillis);
+        }
+    }
+
+    /**
+     * Queues several values of the same attribute in order, taking the lock once.
+     *
+     * @return number of values queued, the values after them were dropped as the queue of the
+     *     connection is full
+     */
+    int offerAll(int serverIf, int connId, int handle, boolean confirm, List<byte[]> values,
+            long nowMillis) {
+        synchronized (mLock) {
+            Connection connection = getOrCreate(connId);
+            checkTimeout(connId, connection, nowMillis);
+            int queued = 0;
+            for (byte[] value : values) {
+                if (!offerLocked(serverIf, connId, connection, handle, confirm, value,
+                        nowMillis)) {
+                    // Keep the order, later values must not overtake a dropped one.
+                    int dropped = values.size() - queued - 1;
+                    connection.dropped += dropped;
+                    mTotalDropped += dropped;
+                    break;
+                }
+                queued++;
+            }
+            return queued;
+        }
+    }
+
+    private boolean offerLocked(int serverIf, int connId, Connection connection, int handle,
+            boolean confirm, byte[] value, long nowMillis) {
+        if (connection.queue.size() >= mCapacity) {
+            connection.dropped++;
+            mTotalDropped++;
+            return false;
+        }
+        connection.queue.add(new Entry(serverIf, handle, confirm, value));
+        connection.maxDepth = Math.max(connection.maxDepth, connection.queue.size());
+        pump(connId, connection, nowMillis);
+        return true;
+    }
+
+    /**
+     * Called when the stack reported a sent notification or a confirmed indication.
+     */
+    void onSent(int connId, long nowMillis) {
+        synchronized (mLock) {
+            Connection connection = mConnections.get(connId);
+            if (connection == null) {
+                return;
+            }
+            if (connection.inFlight > 0) {
+                connection.inFlight--;
+                connection.lastProgressMillis = nowMillis;
+            }
+            pump(connId, connection, nowMillis);
+        }
+    }
+
+    void setCongested(int connId, boolean congested, long nowMillis) {
+        synchronized (mLock) {
+            Connection connection = getOrCreate(connId);
+            connection.isCongested = congested;
+            checkTimeout(connId, connection, nowMillis);
+            pump(connId, connection, nowMillis);
+        }
+    }
+
+    /**
+     * Forgets a connection that went away.
+     *
+     * @return number of values that were still queued
+     */
+    int remove(int connId) {
+        synchronized (mLock) {
+            Connection connection = mConnections.get(connId);
+            if (connection == null) {
+                return 0;
+            }
+            mConnections.remove(connId);
+            int pending = connection.queue.size();
+            mTotalDropped += pending;
+            return pending;
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mConnections.clear();
+        }
+    }
+
+    int getQueueDepth(int connId) {
+        synchronized (mLock) {
+            Connection connection = mConnections.get(connId);
+            return connection == null ? 0 : connection.queue.size();
+        }
+    }
+
+    private Connection getOrCreate(int connId) {
+        Connection connection = mConnections.get(connId);
+        if (connection == null) {
+            connection = new Connection();
+            mConnections.put(connId, connection);
+        }
+        return connection;
+    }
+
+    // Gives the slots back and sends the queued values if the values in flight saw no
+    // completion for too long.
+    private void checkTimeout(int connId, Connection connection, long nowMillis) {
+        if (connection.inFlight > 0
+                && nowMillis - connection.lastProgressMillis >= mSendTimeoutMillis) {
+            connection.inFlight = 0;
+            connection.timeouts++;
+            pump(connId, connection, nowMillis);
+        }
+    }
+
+    // Sends queued values while the connection is not congested and has room in flight. The
+    // stack call only posts to the stack thread, so it is made under the lock to keep the order.
+    private void pump(int connId, Connection connection, long nowMillis) {
+        while (!connection.isCongested && connection.inFlight < mMaxInFlight) {
+            Entry entry = connection.queue.poll();
+            if (entry == null) {
+                return;
+            }
+            if (!mSender.send(entry.serverIf, connId, entry.handle, entry.confirm,
+                    entry.value)) {
+                connection.failed++;
+                continue;
+            }
+            connection.inFlight++;
+            connection.lastProgressMillis = nowMillis;
+            connection.sent++;
+            mTotalSent++;
+        }
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            sb.append("  Sent: " + mTotalSent + ", dropped: " + mTotalDropped + "\n");
+            for (int i = 0; i < mConnections.size(); i++) {
+                Connection connection = mConnections.valueAt(i);
+                sb.append("  connId: " + mConnections.keyAt(i)
+                        + "  depth: " + connection.queue.size()
+                        + "  max depth: " + connection.maxDepth
+                        + "  in flight: " + connection.inFlight
+                        + "  congested: " + connection.isCongested
+                        + "  sent: " + connection.sent
+                        + "  dropped: " + connection.dropped
+                        + "  failed: " + connection.failed
+                        + "  timeouts: " + connection.timeouts + "\n");
+            }
+        }
+    }
+}
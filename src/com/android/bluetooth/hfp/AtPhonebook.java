@@ -23,12 +23,14 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
@@ -38,6 +40,9 @@ import com.android.bluetooth.util.DevicePolicyUtils;
 import com.android.bluetooth.util.GsmAlphabet;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -70,16 +75,51 @@ public class AtPhonebook {
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
 
-    private class PhonebookResult {
-        public Cursor cursor; // result set of last query
-        public int numberColumn;
-        public int numberPresentationColumn;
-        public int typeColumn;
-        public int nameColumn;
+    /** Phonebooks are read again after this time even if no change was notified. */
+    private static final long PHONEBOOK_SNAPSHOT_TTL_MS = 60 * 1000;
+
+    /** Copy of a phonebook, served to the CPBR commands until the phonebook changes. */
+    private static class PhonebookResult {
+        public final String[] numbers;
+        // Null for the call logs, their names are resolved from the contacts.
+        public final String[] names;
+        // Null if the phonebook has no phone types.
+        public final int[] types;
+        // Null if the phonebook has no number presentations.
+        public final int[] numberPresentations;
+        public final long createdMillis;
+
+        PhonebookResult(Cursor cursor, int numberColumn, int nameColumn, int typeColumn,
+                int numberPresentationColumn) {
+            int size = cursor.getCount();
+            numbers = new String[size];
+            names = nameColumn != -1 ? new String[size] : null;
+            types = typeColumn != -1 ? new int[size] : null;
+            numberPresentations = numberPresentationColumn != -1 ? new int[size] : null;
+            for (int i = 0; i < size && cursor.moveToNext(); i++) {
+                numbers[i] = cursor.getString(numberColumn);
+                if (names != null) {
+                    names[i] = cursor.getString(nameColumn);
+                }
+                if (types != null) {
+                    types[i] = cursor.getInt(typeColumn);
+                }
+                if (numberPresentations != null) {
+                    numberPresentations[i] = cursor.getInt(numberPresentationColumn);
+                }
+            }
+            createdMillis = SystemClock.elapsedRealtime();
+        }
+
+        int size() {
+            return numbers.length;
+        }
     }
 
     private Context mContext;
     private ContentResolver mContentResolver;
+    private CallerIdResolver mCallerIdResolver;
+    private final AtTokenizer mAtTokenizer = new AtTokenizer();
     private HeadsetNativeInterface mNativeInterface;
     private String mCurrentPhonebook;
     private String mCharacterSet = "UTF-8";
@@ -92,6 +132,13 @@ public class AtPhonebook {
 
     private final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
+    private final ContentObserver mPhonebookObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            clearPhonebooks();
+        }
+    };
+    private boolean mPhonebookObserverRegistered = false;
 
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
@@ -102,17 +149,21 @@ public class AtPhonebook {
         mContext = context;
         mPairingPackage = context.getString(R.string.pairing_ui_package);
         mContentResolver = context.getContentResolver();
+        mCallerIdResolver = new CallerIdResolver(mContentResolver);
         mNativeInterface = nativeInterface;
-        mPhonebooks.put("DC", new PhonebookResult());  // dialled calls
-        mPhonebooks.put("RC", new PhonebookResult());  // received calls
-        mPhonebooks.put("MC", new PhonebookResult());  // missed calls
-        mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
     }
 
     public void cleanup() {
-        mPhonebooks.clear();
+        synchronized (this) {
+            mPhonebooks.clear();
+            if (mPhonebookObserverRegistered) {
+                mContentResolver.unregisterContentObserver(mPhonebookObserver);
+                mPhonebookObserverRegistered = false;
+            }
+        }
+        mCallerIdResolver.cleanup();
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -177,13 +228,13 @@ public class AtPhonebook {
                 break;
             case TYPE_SET: // Set
                 log("handleCscsCommand - Set Command");
-                String[] args = atString.split("=");
-                if (args.length < 2 || args[1] == null) {
+                mAtTokenizer.resetAfterEquals(atString);
+                if (!mAtTokenizer.next() || mAtTokenizer.isEmpty()) {
                     mNativeInterface.atResponseCode(device, atCommandResult, atCommandErrorCode);
                     break;
                 }
-                String characterSet = ((atString.split("="))[1]);
-                characterSet = characterSet.replace("\"", "");
+                mAtTokenizer.unquote();
+                String characterSet = mAtTokenizer.stringValue();
                 if (characterSet.equals("GSM") || characterSet.equals("IRA") || characterSet.equals(
                         "UTF-8") || characterSet.equals("UTF8")) {
                     mCharacterSet = characterSet;
@@ -218,17 +269,15 @@ public class AtPhonebook {
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     break;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                int size = pbr.cursor.getCount();
+                int size = pbr.size();
                 atCommandResponse =
                         "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(
                                 size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -238,20 +287,16 @@ public class AtPhonebook {
                 break;
             case TYPE_SET: // Set
                 log("handleCpbsCommand - set command");
-                String[] args = atString.split("=");
+                mAtTokenizer.resetAfterEquals(atString);
                 // Select phonebook memory
-                if (args.length < 2 || args[1] == null) {
+                if (!mAtTokenizer.next() || mAtTokenizer.isEmpty()) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                String pb = args[1].trim();
-                while (pb.endsWith("\"")) {
-                    pb = pb.substring(0, pb.length() - 1);
-                }
-                while (pb.startsWith("\"")) {
-                    pb = pb.substring(1, pb.length());
-                }
-                if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
+                mAtTokenizer.unquote();
+                String pb = mAtTokenizer.stringValue();
+                // A new selection starts from a fresh copy of the phonebook
+                if (!"SM".equals(pb) && getPhonebookResult(pb, true) == null) {
                     if (DBG) {
                         log("Dont know phonebook: '" + pb + "'");
                     }
@@ -289,17 +334,15 @@ public class AtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                                 atCommandErrorCode);
                         break;
                     }
-                    size = pbr.cursor.getCount();
+                    size = pbr.size();
                     log("handleCpbrCommand - size = " + size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -326,26 +369,26 @@ public class AtPhonebook {
                 // Parse indexes
                 int index1;
                 int index2;
-                if ((atString.split("=")).length < 2) {
+                mAtTokenizer.resetAfterEquals(atString);
+                if (!mAtTokenizer.next() || mAtTokenizer.isEmpty()) {
                     mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                             atCommandErrorCode);
                     break;
                 }
-                String atCommand = (atString.split("="))[1];
-                String[] indices = atCommand.split(",");
-                //replace AT command separator ';' from the index if any
-                for (int i = 0; i < indices.length; i++) {
-                    indices[i] = indices[i].replace(';', ' ').trim();
-                }
-                try {
-                    index1 = Integer.parseInt(indices[0]);
-                    if (indices.length == 1) {
-                        index2 = index1;
-                    } else {
-                        index2 = Integer.parseInt(indices[1]);
+                //drop AT command separator ';' from the index if any
+                mAtTokenizer.trim();
+                boolean validIndexes = mAtTokenizer.isInt();
+                index1 = index2 = mAtTokenizer.intValue();
+                if (validIndexes && mAtTokenizer.next()) {
+                    mAtTokenizer.trim();
+                    if (mAtTokenizer.isInt()) {
+                        index2 = mAtTokenizer.intValue();
+                    } else if (!mAtTokenizer.isEmpty()) {
+                        validIndexes = false;
                     }
-                } catch (Exception e) {
-                    log("handleCpbrCommand - exception - invalid chars: " + e.toString());
+                }
+                if (!validIndexes) {
+                    log("handleCpbrCommand - invalid chars: " + atString);
                     atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
                     mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
                             atCommandErrorCode);
@@ -382,29 +425,29 @@ public class AtPhonebook {
         }
     }
 
-    /** Get the most recent result for the given phone book,
-     *  with the cursor ready to go.
+    /** Get the copy of the given phone book, reading it again if it changed or expired.
      *  If force then re-query that phonebook
-     *  Returns null if the cursor is not ready
+     *  Returns null if the phonebook cannot be read
      */
     private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
         if (pb == null) {
             return null;
         }
         PhonebookResult pbr = mPhonebooks.get(pb);
-        if (pbr == null) {
-            pbr = new PhonebookResult();
+        if (pbr != null && !force
+                && SystemClock.elapsedRealtime() - pbr.createdMillis < PHONEBOOK_SNAPSHOT_TTL_MS) {
+            return pbr;
         }
-        if (force || pbr.cursor == null) {
-            if (!queryPhonebook(pb, pbr)) {
-                return null;
-            }
+        pbr = queryPhonebook(pb);
+        if (pbr == null) {
+            mPhonebooks.remove(pb);
+            return null;
         }
-
+        mPhonebooks.put(pb, pbr);
         return pbr;
     }
 
-    private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
+    private synchronized PhonebookResult queryPhonebook(String pb) {
         String where;
         boolean ancillaryPhonebook = true;
 
@@ -418,55 +461,65 @@ public class AtPhonebook {
         } else if (pb.equals("MC")) {
             where = MISSED_CALL_WHERE;
         } else {
-            return false;
-        }
-
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+            return null;
         }
 
+        registerPhonebookObserver();
+        Cursor cursor;
+        PhonebookResult pbr;
         if (ancillaryPhonebook) {
             Bundle queryArgs = new Bundle();
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, Calls.DEFAULT_SORT_ORDER);
             queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, MAX_PHONEBOOK_SIZE);
-            pbr.cursor = mContentResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION,
+            cursor = mContentResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION,
                     queryArgs, null);
 
-            if (pbr.cursor == null) {
-                return false;
+            if (cursor == null) {
+                return null;
             }
-            pbr.numberColumn = pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER);
-            pbr.numberPresentationColumn =
-                    pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION);
-            pbr.typeColumn = -1;
-            pbr.nameColumn = -1;
+            pbr = new PhonebookResult(cursor, cursor.getColumnIndexOrThrow(Calls.NUMBER), -1, -1,
+                    cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION));
         } else {
             Bundle queryArgs = new Bundle();
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
             queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, MAX_PHONEBOOK_SIZE);
             final Uri phoneContentUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
-            pbr.cursor = mContentResolver.query(phoneContentUri, PHONES_PROJECTION,
+            cursor = mContentResolver.query(phoneContentUri, PHONES_PROJECTION,
                     queryArgs, null);
 
-            if (pbr.cursor == null) {
-                return false;
+            if (cursor == null) {
+                return null;
             }
+            pbr = new PhonebookResult(cursor, cursor.getColumnIndex(Phone.NUMBER),
+                    cursor.getColumnIndex(Phone.DISPLAY_NAME), cursor.getColumnIndex(Phone.TYPE),
+                    -1);
+        }
+        cursor.close();
+        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.size() + " results");
+        return pbr;
+    }
 
-            pbr.numberColumn = pbr.cursor.getColumnIndex(Phone.NUMBER);
-            pbr.numberPresentationColumn = -1;
-            pbr.typeColumn = pbr.cursor.getColumnIndex(Phone.TYPE);
-            pbr.nameColumn = pbr.cursor.getColumnIndex(Phone.DISPLAY_NAME);
+    // Copies are kept until the call log or the contacts change, start watching on first use.
+    private void registerPhonebookObserver() {
+        if (mPhonebookObserverRegistered) {
+            return;
         }
-        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.cursor.getCount() + " results");
-        return true;
+        mPhonebookObserverRegistered = true;
+        mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mPhonebookObserver);
+        mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mPhonebookObserver);
+    }
+
+    private synchronized void clearPhonebooks() {
+        mPhonebooks.clear();
     }
 
     synchronized void resetAtState() {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+        mPhonebooks.clear();
     }
 
     private synchronized int getMaxPhoneBookSize(int currSize) {
@@ -507,7 +560,7 @@ public class AtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
         if (pbr == null) {
             Log.e(TAG, "pbr is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -518,49 +571,34 @@ public class AtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
-                || mCpbrIndex1 > pbr.cursor.getCount()) {
+        if (pbr.size() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1
+                || mCpbrIndex1 > pbr.size()) {
             atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
             Log.e(TAG, "Invalid request or no results, returning");
             return atCommandResult;
         }
 
-        if (mCpbrIndex2 > pbr.cursor.getCount()) {
+        if (mCpbrIndex2 > pbr.size()) {
             Log.w(TAG, "max index requested is greater than number of records"
                     + " available, resetting it");
-            mCpbrIndex2 = pbr.cursor.getCount();
+            mCpbrIndex2 = pbr.size();
         }
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
         int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
+        Map<String, String> callerIds = null;
+        if (pbr.names == null) {
+            callerIds = resolveCallerIds(pbr);
+        }
         log("mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
+            String number = pbr.numbers[index - 1];
             String name = null;
             int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContentResolver.query(
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (DBG && name == null) {
-                    log("Caller ID lookup failed for " + number);
-                }
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
+            if (pbr.names == null && number != null && number.length() > 0) {
+                name = callerIds.get(number);
+            } else if (pbr.names != null) {
+                name = pbr.names[index - 1];
             } else {
                 log("processCpbrCommand: empty name and number");
             }
@@ -572,8 +610,8 @@ public class AtPhonebook {
                 name = name.substring(0, 28);
             }
 
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
+            if (pbr.types != null) {
+                type = pbr.types[index - 1];
                 name = name + "/" + getPhoneType(type);
             }
 
@@ -588,8 +626,8 @@ public class AtPhonebook {
                 number = number.substring(0, 30);
             }
             int numberPresentation = Calls.PRESENTATION_ALLOWED;
-            if (pbr.numberPresentationColumn != -1) {
-                numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
+            if (pbr.numberPresentations != null) {
+                numberPresentation = pbr.numberPresentations[index - 1];
             }
             if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
                 number = "";
@@ -613,17 +651,22 @@ public class AtPhonebook {
             record = record + "\r\n\r\n";
             atCommandResponse = record;
             mNativeInterface.atResponseString(device, atCommandResponse);
-            if (!pbr.cursor.moveToNext()) {
-                break;
-            }
-        }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
         }
         return atCommandResult;
     }
 
+    // Resolves the contact names of the numbers in the requested range with one lookup.
+    private Map<String, String> resolveCallerIds(PhonebookResult pbr) {
+        Set<String> numbers = new HashSet<>();
+        for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
+            String number = pbr.numbers[index - 1];
+            if (number != null && number.length() > 0) {
+                numbers.add(number);
+            }
+        }
+        return mCallerIdResolver.resolve(numbers);
+    }
+
     /**
      * Checks if the remote device has premission to read our phone book.
      * If the return value is {@link BluetoothDevice#ACCESS_UNKNOWN}, it means this method has sent
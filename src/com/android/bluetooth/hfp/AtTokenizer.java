@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+/**
+ * Reads the comma separated arguments of an AT command in place, without splitting the command
+ * string. Commas inside double quotes are part of the argument.
+ *
+ * A tokenizer is reused for every command and is not thread safe.
+ */
+class AtTokenizer {
+    // Value of mIntValue when the current argument is not an integer.
+    private static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    private String mInput = "";
+    // Start of the next argument, past the end when all the arguments were read.
+    private int mPosition = 1;
+    private int mArgStart = 0;
+    private int mArgEnd = 0;
+    private long mIntValue = NOT_AN_INT;
+
+    /**
+     * Starts reading the arguments of the input from the given index.
+     */
+    AtTokenizer reset(String input, int start) {
+        mInput = input;
+        mPosition = start;
+        mArgStart = mArgEnd = start;
+        mIntValue = NOT_AN_INT;
+        return this;
+    }
+
+    /**
+     * Starts reading the arguments after the first '=' of the input, none if there is none.
+     */
+    AtTokenizer resetAfterEquals(String input) {
+        int equals = input.indexOf('=');
+        return reset(input, equals == -1 ? input.length() + 1 : equals + 1);
+    }
+
+    /**
+     * Moves to the next argument.
+     *
+     * @return false if all the arguments were read
+     */
+    boolean next() {
+        if (mPosition > mInput.length()) {
+            return false;
+        }
+        mArgStart = mPosition;
+        mArgEnd = findComma(mPosition);
+        mPosition = mArgEnd + 1;
+        mIntValue = parseInt(mArgStart, mArgEnd);
+        return true;
+    }
+
+    /**
+     * Drops spaces, control characters and AT command separators around the current argument.
+     */
+    void trim() {
+        while (mArgStart < mArgEnd && isPadding(mInput.charAt(mArgStart))) {
+            mArgStart++;
+        }
+        while (mArgEnd > mArgStart && isPadding(mInput.charAt(mArgEnd - 1))) {
+            mArgEnd--;
+        }
+        mIntValue = parseInt(mArgStart, mArgEnd);
+    }
+
+    /**
+     * Drops the double quotes around the current argument, after trimming it.
+     */
+    void unquote() {
+        trim();
+        while (mArgStart < mArgEnd && mInput.charAt(mArgStart) == '"') {
+            mArgStart++;
+        }
+        while (mArgEnd > mArgStart && mInput.charAt(mArgEnd - 1) == '"') {
+            mArgEnd--;
+        }
+        mIntValue = parseInt(mArgStart, mArgEnd);
+    }
+
+    boolean isEmpty() {
+        return mArgStart == mArgEnd;
+    }
+
+    /**
+     * Returns whether the current argument is a decimal integer, as accepted by
+     * {@link Integer#parseInt(String)}.
+     */
+    boolean isInt() {
+        return mIntValue != NOT_AN_INT;
+    }
+
+    /**
+     * Returns the current argument as an integer, only valid if {@link #isInt()}.
+     */
+    int intValue() {
+        return (int) mIntValue;
+    }
+
+    /**
+     * Returns the current argument, this is the only method allocating.
+     */
+    String stringValue() {
+        return mInput.substring(mArgStart, mArgEnd);
+    }
+
+    private int findComma(int fromIndex) {
+        for (int i = fromIndex; i < mInput.length(); i++) {
+            char c = mInput.charAt(i);
+            if (c == '"') {
+                i = mInput.indexOf('"', i + 1);
+                if (i == -1) {
+                    return mInput.length();
+                }
+            } else if (c == ',') {
+                return i;
+            }
+        }
+        return mInput.length();
+    }
+
+    private long parseInt(int start, int end) {
+        if (start == end) {
+            return NOT_AN_INT;
+        }
+        boolean negative = false;
+        char first = mInput.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+            if (start == end) {
+                return NOT_AN_INT;
+            }
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(mInput.charAt(i), 10);
+            if (digit < 0) {
+                return NOT_AN_INT;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NOT_AN_INT;
+            }
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? NOT_AN_INT : value;
+    }
+
+    private static boolean isPadding(char c) {
+        return c <= ' ' || c == ';';
+    }
+
+    /**
+     * Returns the type of a normalized AT command starting with a five character name such as
+     * "+CPBR", one of the AtPhonebook TYPE_* values.
+     */
+    static int getCommandType(String atCommand) {
+        int start = 0;
+        int end = atCommand.length();
+        while (start < end && atCommand.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && atCommand.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start <= 5) {
+            return AtPhonebook.TYPE_UNKNOWN;
+        }
+        char c = atCommand.charAt(start + 5);
+        if (c == '?') {
+            return AtPhonebook.TYPE_READ;
+        }
+        if (c == '=') {
+            return end - start > 6 && atCommand.charAt(start + 6) == '?'
+                    ? AtPhonebook.TYPE_TEST : AtPhonebook.TYPE_SET;
+        }
+        return AtPhonebook.TYPE_UNKNOWN;
+    }
+
+    /**
+     * Normalizes an unknown AT command: drops the spaces and upper cases the characters outside
+     * of double quotes, and closes an unmatched double quote.
+     */
+    static String normalize(String atString) {
+        StringBuilder atCommand = new StringBuilder(atString.length() + 1);
+        for (int i = 0; i < atString.length(); i++) {
+            char c = atString.charAt(i);
+            if (c == '"') {
+                int j = atString.indexOf('"', i + 1); // search for closing "
+                if (j == -1) { // unmatched ", insert one.
+                    atCommand.append(atString, i, atString.length());
+                    atCommand.append('"');
+                    break;
+                }
+                atCommand.append(atString, i, j + 1);
+                i = j;
+            } else if (c != ' ') {
+                atCommand.append(Character.toUpperCase(c));
+            }
+        }
+        return atCommand.toString();
+    }
+}
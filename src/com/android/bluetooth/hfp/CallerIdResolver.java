@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the contact names of call log numbers for the AT+CPBR call log phonebooks.
+ *
+ * The numbers are first matched in batches against the phone numbers of the contacts. Only the
+ * numbers left unmatched are looked up one by one with {@link PhoneLookup}, which also matches
+ * numbers written differently and work contacts. Results, including unknown numbers, are kept
+ * in a bounded LRU cache that is cleared when the contacts change.
+ */
+class CallerIdResolver {
+    private static final String TAG = "BluetoothCallerIdResolver";
+
+    private static final int MAX_CACHE_SIZE = 512;
+    // Each number is bound twice, stay well below the SQLite variable limit.
+    private static final int MAX_NUMBERS_PER_QUERY = 100;
+
+    private static final String[] PHONES_PROJECTION = new String[]{
+            Phone.NUMBER, Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME
+    };
+    private static final String[] LOOKUP_PROJECTION = new String[]{
+            PhoneLookup.DISPLAY_NAME
+    };
+
+    private final ContentResolver mContentResolver;
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+    private boolean mObserverRegistered = false;
+
+    // Number to contact name, empty if the number is not in the contacts.
+    private final LinkedHashMap<String, String> mCache =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+    // Incremented on every invalidation, results of an older generation are not cached.
+    private int mGeneration = 0;
+
+    private long mCacheHits = 0;
+
+    CallerIdResolver(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Resolves the contact names of the given numbers.
+     *
+     * @return the contact name of each number, an empty name if it is not in the contacts
+     */
+    Map<String, String> resolve(Collection<String> numbers) {
+        registerObserver();
+        Map<String, String> names = new HashMap<>();
+        Set<String> misses = new LinkedHashSet<>();
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+            for (String number : numbers) {
+                String name = mCache.get(number);
+                if (name != null) {
+                    mCacheHits++;
+                    names.put(number, name);
+                } else {
+                    misses.add(number);
+                }
+            }
+        }
+        if (misses.isEmpty()) {
+            return names;
+        }
+
+        Map<String, String> resolved = queryContacts(new ArrayList<>(misses));
+        for (String number : misses) {
+            String name = resolved.get(number);
+            if (name == null) {
+                name = lookup(number);
+                resolved.put(number, name);
+            }
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.putAll(resolved);
+            }
+        }
+        names.putAll(resolved);
+        return names;
+    }
+
+    /**
+     * Forgets the resolved names.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mCache.clear();
+    }
+
+    @VisibleForTesting
+    synchronized long getCacheHitCount() {
+        return mCacheHits;
+    }
+
+    void cleanup() {
+        synchronized (this) {
+            if (!mObserverRegistered) {
+                return;
+            }
+            mObserverRegistered = false;
+        }
+        mContentResolver.unregisterContentObserver(mContactsObserver);
+        invalidate();
+    }
+
+    // The cache is only valid while the contacts are observed, start on the first use.
+    private void registerObserver() {
+        synchronized (this) {
+            if (mObserverRegistered) {
+                return;
+            }
+            mObserverRegistered = true;
+            mCache.clear();
+        }
+        mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+    }
+
+    // Matches the numbers against the stored and normalized phone numbers of the contacts.
+    private Map<String, String> queryContacts(List<String> numbers) {
+        Map<String, String> names = new HashMap<>();
+        for (int start = 0; start < numbers.size(); start += MAX_NUMBERS_PER_QUERY) {
+            List<String> chunk =
+                    numbers.subList(start, Math.min(numbers.size(), start + MAX_NUMBERS_PER_QUERY));
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            String selection = Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ") OR "
+                    + Phone.NUMBER + " IN (" + placeholders + ")";
+            String[] selectionArgs = new String[chunk.size() * 2];
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i] = chunk.get(i);
+                selectionArgs[chunk.size() + i] = chunk.get(i);
+            }
+            Cursor c = mContentResolver.query(Phone.CONTENT_URI, PHONES_PROJECTION, selection,
+                    selectionArgs, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    String name = c.getString(2);
+                    if (name == null) {
+                        continue;
+                    }
+                    for (int column = 0; column < 2; column++) {
+                        String number = c.getString(column);
+                        if (number != null && chunk.contains(number)) {
+                            names.putIfAbsent(number, name);
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return names;
+    }
+
+    private String lookup(String number) {
+        Cursor c = mContentResolver.query(
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                LOOKUP_PROJECTION, null, null, null);
+        String name = null;
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(0);
+            }
+            c.close();
+        }
+        if (name == null) {
+            Log.v(TAG, "Caller ID lookup failed");
+            return "";
+        }
+        return name;
+    }
+}
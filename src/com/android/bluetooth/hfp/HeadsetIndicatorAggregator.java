@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+/**
+ * Rate limits the AG indicator updates sent to one remote device.
+ *
+ * An update is sent right away if the previous one is older than the minimum interval, otherwise
+ * only the latest state is kept and sent once the interval elapsed. Updates changing only
+ * indicators the remote device deactivated with AT+BIA, or reverting to the state the remote
+ * device last got with +CIEV or +CIND, are dropped.
+ *
+ * Not thread safe, used from the state machine thread only.
+ */
+class HeadsetIndicatorAggregator {
+    static final long SEND_NOW = 0;
+    static final long NOTHING_TO_SEND = -1;
+
+    // Latest state received, sent or not.
+    private HeadsetDeviceState mLatest;
+    // State the remote device knows, from the last +CIEV or +CIND.
+    private HeadsetDeviceState mLastSent;
+    private long mLastSentMillis;
+    private boolean mFlushPending = false;
+
+    private long mReceived = 0;
+    private long mSent = 0;
+    private long mCoalesced = 0;
+    private long mSuppressed = 0;
+
+    /**
+     * Records a new device state.
+     *
+     * @param enableState indicators activated by the remote device, null if all are
+     * @return {@link #SEND_NOW} if the state is to be sent now, {@link #NOTHING_TO_SEND}, or the
+     *     delay after which {@link #flush} is to be called
+     */
+    long update(HeadsetDeviceState state, HeadsetAgIndicatorEnableState enableState,
+            long nowMillis, long minIntervalMillis) {
+        mReceived++;
+        mLatest = state;
+        if (mFlushPending) {
+            mCoalesced++;
+            return NOTHING_TO_SEND;
+        }
+        if (!isChanged(state, enableState)) {
+            mSuppressed++;
+            return NOTHING_TO_SEND;
+        }
+        long elapsedMillis = nowMillis - mLastSentMillis;
+        if (mLastSent == null || elapsedMillis >= minIntervalMillis) {
+            markSent(state, nowMillis);
+            return SEND_NOW;
+        }
+        mFlushPending = true;
+        return minIntervalMillis - elapsedMillis;
+    }
+
+    /**
+     * Returns the latest device state if it has to be sent now, null otherwise. Also called when
+     * the remote device activates indicators, to send the changes it did not get.
+     */
+    HeadsetDeviceState flush(HeadsetAgIndicatorEnableState enableState, long nowMillis) {
+        mFlushPending = false;
+        if (mLatest == null || mLatest == mLastSent) {
+            return null;
+        }
+        if (!isChanged(mLatest, enableState)) {
+            mSuppressed++;
+            return null;
+        }
+        markSent(mLatest, nowMillis);
+        return mLatest;
+    }
+
+    /**
+     * Records the indicator values reported to the remote device in a +CIND response, later
+     * updates are compared against them. Does not count as a sent update for the interval.
+     */
+    void onReported(HeadsetDeviceState state) {
+        mLastSent = state;
+    }
+
+    /**
+     * Forgets the states, for a new connection.
+     */
+    void reset() {
+        mLatest = null;
+        mLastSent = null;
+        mFlushPending = false;
+    }
+
+    private boolean isChanged(HeadsetDeviceState state, HeadsetAgIndicatorEnableState enable) {
+        if (mLastSent == null) {
+            return true;
+        }
+        return ((enable == null || enable.service) && state.mService != mLastSent.mService)
+                || ((enable == null || enable.roam) && state.mRoam != mLastSent.mRoam)
+                || ((enable == null || enable.signal) && state.mSignal != mLastSent.mSignal)
+                || ((enable == null || enable.battery)
+                        && state.mBatteryCharge != mLastSent.mBatteryCharge);
+    }
+
+    private void markSent(HeadsetDeviceState state, long nowMillis) {
+        mLastSent = state;
+        mLastSentMillis = nowMillis;
+        mSent++;
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "  Indicator updates: received=" + mReceived + ", sent="
+                + mSent + ", coalesced=" + mCoalesced + ", suppressed=" + mSuppressed);
+    }
+}
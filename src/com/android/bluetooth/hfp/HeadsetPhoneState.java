@@ -68,6 +68,11 @@ public class HeadsetPhoneState {
     private int mCindRoam = HeadsetHalConstants.SERVICE_TYPE_HOME;
     // HFP 1.6 CIND battchg value
     private int mCindBatteryCharge;
+    // Whether a device state update is posted to the handler and not sent yet
+    private boolean mDeviceStateUpdatePending = false;
+    // Device state changes, and updates sent for them after merging the changes
+    private long mDeviceStateChanges = 0;
+    private long mDeviceStateUpdates = 0;
 
     private final HashMap<BluetoothDevice, Integer> mDeviceEventMap = new HashMap<>();
     private PhoneStateListener mPhoneStateListener;
@@ -106,7 +111,9 @@ public class HeadsetPhoneState {
         return "HeadsetPhoneState [mTelephonyServiceAvailability=" + mCindService + ", mNumActive="
                 + mNumActive + ", mCallState=" + mCallState + ", mNumHeld=" + mNumHeld
                 + ", mSignal=" + mCindSignal + ", mRoam=" + mCindRoam + ", mBatteryCharge="
-                + mCindBatteryCharge + ", TelephonyEvents=" + getTelephonyEventsToListen() + "]";
+                + mCindBatteryCharge + ", TelephonyEvents=" + getTelephonyEventsToListen()
+                + ", DeviceStateChanges=" + mDeviceStateChanges + ", DeviceStateUpdates="
+                + mDeviceStateUpdates + "]";
     }
 
     private int getTelephonyEventsToListen() {
@@ -236,12 +243,26 @@ public class HeadsetPhoneState {
         return (mNumActive >= 1);
     }
 
+    /*
+     * Changes made before the posted update runs are sent together in that update.
+     */
     private synchronized void sendDeviceStateChanged() {
+        mDeviceStateChanges++;
+        if (mDeviceStateUpdatePending) {
+            return;
+        }
+        mDeviceStateUpdatePending = true;
+        mHandler.post(this::sendPendingDeviceState);
+    }
+
+    private synchronized void sendPendingDeviceState() {
+        mDeviceStateUpdatePending = false;
+        mDeviceStateUpdates++;
         // When out of service, send signal strength as 0. Some devices don't
         // use the service indicator, but only the signal indicator
         int signal = mCindService == HeadsetHalConstants.NETWORK_STATE_AVAILABLE ? mCindSignal : 0;
 
-        Log.d(TAG, "sendDeviceStateChanged. mService=" + mCindService
+        Log.d(TAG, "sendPendingDeviceState. mService=" + mCindService
                 + " mSignal=" + mCindSignal + " mRoam=" + mCindRoam
                 + " mBatteryCharge=" + mCindBatteryCharge);
         mHeadsetService.onDeviceStateChanged(
@@ -112,6 +112,7 @@ public class HeadsetStateMachine extends StateMachine {
 
     static final int STACK_EVENT = 101;
     private static final int CLCC_RSP_TIMEOUT = 104;
+    private static final int SEND_PENDING_DEVICE_STATE = 105;
 
     private static final int CONNECT_TIMEOUT = 201;
 
@@ -146,12 +147,16 @@ public class HeadsetStateMachine extends StateMachine {
     private int mMicVolume;
     private boolean mDeviceSilenced;
     private HeadsetAgIndicatorEnableState mAgIndicatorEnableState;
+    private final HeadsetIndicatorAggregator mIndicatorAggregator =
+            new HeadsetIndicatorAggregator();
     // The timestamp when the device entered connecting/connected state
     private long mConnectingTimestampMs = Long.MIN_VALUE;
     // Audio Parameters like NREC
     private final HashMap<String, String> mAudioParams = new HashMap<>();
     // AT Phone book keeps a group of states used by AT+CPBR commands
     private final AtPhonebook mPhonebook;
+    // Reused to parse the arguments of the AT commands handled on the state machine thread
+    private final AtTokenizer mAtTokenizer = new AtTokenizer();
     // HSP specific
     private boolean mNeedDialingOutReply;
 
@@ -240,6 +245,7 @@ public class HeadsetStateMachine extends StateMachine {
         ProfileService.println(sb, "  mMicVolume: " + mMicVolume);
         ProfileService.println(sb,
                 "  mConnectingTimestampMs(uptimeMillis): " + mConnectingTimestampMs);
+        mIndicatorAggregator.dump(sb);
         ProfileService.println(sb, "  StateMachine: " + this);
         // Dump the state machine logs
         StringWriter stringWriter = new StringWriter();
@@ -454,6 +460,8 @@ public class HeadsetStateMachine extends StateMachine {
             mConnectingTimestampMs = Long.MIN_VALUE;
             mPhonebook.resetAtState();
             updateAgIndicatorEnableState(null);
+            removeMessages(SEND_PENDING_DEVICE_STATE);
+            mIndicatorAggregator.reset();
             mNeedDialingOutReply = false;
             mAudioParams.clear();
             broadcastStateTransitions();
@@ -873,7 +881,10 @@ public class HeadsetStateMachine extends StateMachine {
                     break;
                 }
                 case DEVICE_STATE_CHANGED:
-                    mNativeInterface.notifyDeviceStatus(mDevice, (HeadsetDeviceState) message.obj);
+                    processDeviceStateChanged((HeadsetDeviceState) message.obj);
+                    break;
+                case SEND_PENDING_DEVICE_STATE:
+                    sendPendingDeviceState();
                     break;
                 case SEND_CCLC_RESPONSE:
                     processSendClccResponse((HeadsetClccResponse) message.obj);
@@ -998,6 +1009,8 @@ public class HeadsetStateMachine extends StateMachine {
                         case HeadsetStackEvent.EVENT_TYPE_BIA:
                             updateAgIndicatorEnableState(
                                     (HeadsetAgIndicatorEnableState) event.valueObject);
+                            // Send the changes of the indicators activated again
+                            sendPendingDeviceState();
                             break;
                         default:
                             stateLogE("Unknown stack event: " + event);
@@ -1560,46 +1573,6 @@ public class HeadsetStateMachine extends StateMachine {
         mSystemInterface.getAudioManager().setParameters(keyValuePairs);
     }
 
-    private String parseUnknownAt(String atString) {
-        StringBuilder atCommand = new StringBuilder(atString.length());
-
-        for (int i = 0; i < atString.length(); i++) {
-            char c = atString.charAt(i);
-            if (c == '"') {
-                int j = atString.indexOf('"', i + 1); // search for closing "
-                if (j == -1) { // unmatched ", insert one.
-                    atCommand.append(atString.substring(i, atString.length()));
-                    atCommand.append('"');
-                    break;
-                }
-                atCommand.append(atString.substring(i, j + 1));
-                i = j;
-            } else if (c != ' ') {
-                atCommand.append(Character.toUpperCase(c));
-            }
-        }
-        return atCommand.toString();
-    }
-
-    private int getAtCommandType(String atCommand) {
-        int commandType = AtPhonebook.TYPE_UNKNOWN;
-        String atString = null;
-        atCommand = atCommand.trim();
-        if (atCommand.length() > 5) {
-            atString = atCommand.substring(5);
-            if (atString.startsWith("?")) { // Read
-                commandType = AtPhonebook.TYPE_READ;
-            } else if (atString.startsWith("=?")) { // Test
-                commandType = AtPhonebook.TYPE_TEST;
-            } else if (atString.startsWith("=")) { // Set
-                commandType = AtPhonebook.TYPE_SET;
-            } else {
-                commandType = AtPhonebook.TYPE_UNKNOWN;
-            }
-        }
-        return commandType;
-    }
-
     @RequiresPermission(android.Manifest.permission.MODIFY_PHONE_STATE)
     private void processDialCall(String number) {
         String dialNumber;
@@ -1758,6 +1731,9 @@ public class HeadsetStateMachine extends StateMachine {
         mNativeInterface.cindResponse(device, phoneState.getCindService(), call, callSetup,
                 phoneState.getCallState(), phoneState.getCindSignal(), phoneState.getCindRoam(),
                 phoneState.getCindBatteryCharge());
+        mIndicatorAggregator.onReported(new HeadsetDeviceState(phoneState.getCindService(),
+                phoneState.getCindRoam(), phoneState.getCindSignal(),
+                phoneState.getCindBatteryCharge()));
     }
 
     @RequiresPermission(android.Manifest.permission.MODIFY_PHONE_STATE)
@@ -1831,44 +1807,19 @@ public class HeadsetStateMachine extends StateMachine {
     }
 
     /**
-     * Find a character ch, ignoring quoted sections.
-     * Return input.length() if not found.
+     * Break an argument string into individual arguments (comma delimited),
+     * starting at the given index. Integer arguments are turned into Integer
+     * objects. Otherwise a String object is used.
      */
-    private static int findChar(char ch, String input, int fromIndex) {
-        for (int i = fromIndex; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (c == '"') {
-                i = input.indexOf('"', i + 1);
-                if (i == -1) {
-                    return input.length();
-                }
-            } else if (c == ch) {
-                return i;
-            }
-        }
-        return input.length();
-    }
-
-    /**
-     * Break an argument string into individual arguments (comma delimited).
-     * Integer arguments are turned into Integer objects. Otherwise a String
-     * object is used.
-     */
-    private static Object[] generateArgs(String input) {
-        int i = 0;
-        int j;
+    private Object[] generateArgs(String input, int start) {
         ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-
-            String arg = input.substring(i, j);
-            try {
-                out.add(new Integer(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
+        mAtTokenizer.reset(input, start);
+        while (mAtTokenizer.next()) {
+            if (mAtTokenizer.isInt()) {
+                out.add(Integer.valueOf(mAtTokenizer.intValue()));
+            } else {
+                out.add(mAtTokenizer.stringValue());
             }
-
-            i = j + 1; // move past comma
         }
         return out.toArray();
     }
@@ -1898,14 +1849,13 @@ public class HeadsetStateMachine extends StateMachine {
             return;
         }
 
-        String arg = atString.substring(indexOfEqual + 1);
-        if (arg.startsWith("?")) {
+        if (atString.startsWith("?", indexOfEqual + 1)) {
             Log.w(TAG, "processVendorSpecificAt: command type error in " + atString);
             mNativeInterface.atResponseCode(device, HeadsetHalConstants.AT_RESPONSE_ERROR, 0);
             return;
         }
 
-        Object[] args = generateArgs(arg);
+        Object[] args = generateArgs(atString, indexOfEqual + 1);
         if (command.equals(BluetoothHeadset.VENDOR_SPECIFIC_HEADSET_EVENT_XAPL)) {
             processAtXapl(args, device);
         }
@@ -1951,8 +1901,8 @@ public class HeadsetStateMachine extends StateMachine {
             return;
         }
         log("processUnknownAt - atString = " + atString);
-        String atCommand = parseUnknownAt(atString);
-        int commandType = getAtCommandType(atCommand);
+        String atCommand = AtTokenizer.normalize(atString);
+        int commandType = AtTokenizer.getCommandType(atCommand);
         if (atCommand.startsWith("+CSCS")) {
             processAtCscs(atCommand.substring(5), commandType, device);
         } else if (atCommand.startsWith("+CPBS")) {
@@ -2020,16 +1970,16 @@ public class HeadsetStateMachine extends StateMachine {
     private void processAtBind(String atString, BluetoothDevice device) {
         log("processAtBind: " + atString);
 
-        for (String id : atString.split(",")) {
-
-            int indId;
-
-            try {
-                indId = Integer.parseInt(id);
-            } catch (NumberFormatException e) {
-                Log.e(TAG, Log.getStackTraceString(new Throwable()));
+        mAtTokenizer.reset(atString, 0);
+        while (mAtTokenizer.next()) {
+            if (!mAtTokenizer.isInt()) {
+                // Empty arguments, e.g. after a trailing comma, are not errors
+                if (!mAtTokenizer.isEmpty()) {
+                    Log.e(TAG, Log.getStackTraceString(new Throwable()));
+                }
                 continue;
             }
+            int indId = mAtTokenizer.intValue();
 
             switch (indId) {
                 case HeadsetHalConstants.HF_INDICATOR_ENHANCED_DRIVER_SAFETY:
@@ -2079,6 +2029,38 @@ public class HeadsetStateMachine extends StateMachine {
         return deviceName;
     }
 
+    /*
+     * Send the device state to the remote device, at most once per minimum interval if one is
+     * configured.
+     */
+    private void processDeviceStateChanged(HeadsetDeviceState deviceState) {
+        long minIntervalMillis = mAdapterService.getHfpIndicatorMinIntervalMillis();
+        if (minIntervalMillis <= 0) {
+            // Rate limiting disabled, send every update as is
+            mIndicatorAggregator.reset();
+            mNativeInterface.notifyDeviceStatus(mDevice, deviceState);
+            return;
+        }
+        long delayMillis = mIndicatorAggregator.update(deviceState, mAgIndicatorEnableState,
+                SystemClock.uptimeMillis(), minIntervalMillis);
+        if (delayMillis == HeadsetIndicatorAggregator.SEND_NOW) {
+            mNativeInterface.notifyDeviceStatus(mDevice, deviceState);
+        } else if (delayMillis > 0) {
+            sendMessageDelayed(SEND_PENDING_DEVICE_STATE, delayMillis);
+        }
+    }
+
+    private void sendPendingDeviceState() {
+        // Flushing from AT+BIA makes a scheduled flush stale, it would send the next change
+        // before the minimum interval elapsed.
+        removeMessages(SEND_PENDING_DEVICE_STATE);
+        HeadsetDeviceState deviceState =
+                mIndicatorAggregator.flush(mAgIndicatorEnableState, SystemClock.uptimeMillis());
+        if (deviceState != null) {
+            mNativeInterface.notifyDeviceStatus(mDevice, deviceState);
+        }
+    }
+
     private void updateAgIndicatorEnableState(
             HeadsetAgIndicatorEnableState agIndicatorEnableState) {
         if (!mDeviceSilenced
@@ -2205,6 +2187,8 @@ public class HeadsetStateMachine extends StateMachine {
                 return "DIALING_OUT_RESULT";
             case CLCC_RSP_TIMEOUT:
                 return "CLCC_RSP_TIMEOUT";
+            case SEND_PENDING_DEVICE_STATE:
+                return "SEND_PENDING_DEVICE_STATE";
             case CONNECT_TIMEOUT:
                 return "CONNECT_TIMEOUT";
             default:
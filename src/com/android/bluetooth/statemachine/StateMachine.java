@@ -20,8 +20,10 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -32,6 +34,7 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
 
 /**
@@ -471,6 +474,20 @@ public class StateMachine {
             update(sm, msg, info, state, orgState, transToState);
         }
 
+        /**
+         * Constructor for a record read from {@link LogRecords}.
+         */
+        LogRec(StateMachine sm, long time, int what, String info, IState state,
+                IState orgState, IState dstState) {
+            mSm = sm;
+            mTime = time;
+            mWhat = what;
+            mInfo = info;
+            mState = state;
+            mOrgState = orgState;
+            mDstState = dstState;
+        }
+
         /**
          * Update the information in the record.
          * @param state that handled the message
@@ -571,13 +588,29 @@ public class StateMachine {
      * count which is the number of records processed since the
      * the last setSize, get which returns a record and
      * add which adds a record.
+     *
+     * The records are kept in preallocated arrays used as a ring, so adding a record does not
+     * allocate. The info of a processed message is only formatted by
+     * {@link StateMachine#getLogRecString} when the record is read.
      */
     private static class LogRecords {
 
         private static final int DEFAULT_SIZE = 20;
 
-        private Vector<LogRec> mLogRecVector = new Vector<LogRec>();
-        private int mMaxSize = DEFAULT_SIZE;
+        private StateMachine mSm;
+        private int mMaxSize;
+        private long[] mTime;
+        private int[] mWhat;
+        private int[] mArg1;
+        private int[] mArg2;
+        private Object[] mObj;
+        private String[] mInfo;
+        // True if the info is formatted from the message when the record is read.
+        private boolean[] mFormatInfo;
+        private IState[] mState;
+        private IState[] mOrgState;
+        private IState[] mDstState;
+        private int mSize = 0;
         private int mOldestIndex = 0;
         private int mCount = 0;
         private boolean mLogOnlyTransitions = false;
@@ -586,21 +619,36 @@ public class StateMachine {
          * private constructor use add
          */
         private LogRecords() {
+            allocate(DEFAULT_SIZE);
+        }
+
+        private void allocate(int maxSize) {
+            mMaxSize = maxSize;
+            mTime = new long[maxSize];
+            mWhat = new int[maxSize];
+            mArg1 = new int[maxSize];
+            mArg2 = new int[maxSize];
+            mObj = new Object[maxSize];
+            mInfo = new String[maxSize];
+            mFormatInfo = new boolean[maxSize];
+            mState = new IState[maxSize];
+            mOrgState = new IState[maxSize];
+            mDstState = new IState[maxSize];
         }
 
         /**
          * Set size of messages to maintain and clears all current records.
          *
-         * @param maxSize number of records to maintain at anyone time.
+         * @param maxSize number of records to maintain at anyone time, 0 to keep none.
          */
         synchronized void setSize(int maxSize) {
             // TODO: once b/28217358 is fixed, add unit tests  to verify that these variables are
             // cleared after calling this method, and that subsequent calls to get() function as
             // expected.
-            mMaxSize = maxSize;
+            allocate(Math.max(0, maxSize));
             mOldestIndex = 0;
             mCount = 0;
-            mLogRecVector.clear();
+            mSize = 0;
         }
 
         synchronized void setLogOnlyTransitions(boolean enable) {
@@ -615,7 +663,7 @@ public class StateMachine {
          * @return the number of recent records.
          */
         synchronized int size() {
-            return mLogRecVector.size();
+            return mSize;
         }
 
         /**
@@ -629,7 +677,16 @@ public class StateMachine {
          * Clear the list of records.
          */
         synchronized void cleanup() {
-            mLogRecVector.clear();
+            for (int i = 0; i < mSize; i++) {
+                mObj[i] = null;
+                mInfo[i] = null;
+                mState[i] = null;
+                mOrgState[i] = null;
+                mDstState[i] = null;
+            }
+            mSm = null;
+            mOldestIndex = 0;
+            mSize = 0;
         }
 
         /**
@@ -637,20 +694,78 @@ public class StateMachine {
          * record and size()-1 is the newest record. If the index is to
          * large null is returned.
          */
-        synchronized LogRec get(int index) {
-            int nextIndex = mOldestIndex + index;
-            if (nextIndex >= mMaxSize) {
-                nextIndex -= mMaxSize;
+        LogRec get(int index) {
+            StateMachine sm;
+            long time;
+            int what;
+            int arg1;
+            int arg2;
+            Object obj;
+            String info;
+            boolean formatInfo;
+            IState state;
+            IState orgState;
+            IState dstState;
+            synchronized (this) {
+                if (index < 0 || index >= mSize) {
+                    return null;
+                }
+                int nextIndex = mOldestIndex + index;
+                if (nextIndex >= mMaxSize) {
+                    nextIndex -= mMaxSize;
+                }
+                sm = mSm;
+                time = mTime[nextIndex];
+                what = mWhat[nextIndex];
+                arg1 = mArg1[nextIndex];
+                arg2 = mArg2[nextIndex];
+                obj = mObj[nextIndex];
+                info = mInfo[nextIndex];
+                formatInfo = mFormatInfo[nextIndex];
+                state = mState[nextIndex];
+                orgState = mOrgState[nextIndex];
+                dstState = mDstState[nextIndex];
             }
-            if (nextIndex >= size()) {
-                return null;
-            } else {
-                return mLogRecVector.get(nextIndex);
+            if (formatInfo) {
+                info = formatInfo(sm, what, arg1, arg2, obj);
+            }
+            return new LogRec(sm, time, what, info, state, orgState, dstState);
+        }
+
+        // Formats the info of a processed message, outside of the lock as it calls the
+        // subclass.
+        private static String formatInfo(StateMachine sm, int what, int arg1, int arg2,
+                Object obj) {
+            if (sm == null) {
+                return "";
             }
+            Message msg = Message.obtain();
+            msg.what = what;
+            msg.arg1 = arg1;
+            msg.arg2 = arg2;
+            msg.obj = obj;
+            String info = sm.getLogRecString(msg);
+            msg.recycle();
+            return info;
+        }
+
+        /**
+         * Add a processed message, its info is formatted when the record is read.
+         *
+         * @param msg
+         * @param state that handled the message
+         * @param orgState is the first state the received the message but
+         * did not processes the message.
+         * @param transToState is the state that was transitioned to after the message was
+         * processed.
+         */
+        synchronized void addMessage(StateMachine sm, Message msg, IState state,
+                IState orgState, IState transToState) {
+            addLocked(sm, msg, null, true, state, orgState, transToState);
         }
 
         /**
-         * Add a processed message.
+         * Add a record.
          *
          * @param msg
          * @param messageInfo to be stored
@@ -663,17 +778,169 @@ public class StateMachine {
          */
         synchronized void add(StateMachine sm, Message msg, String messageInfo, IState state,
                 IState orgState, IState transToState) {
+            addLocked(sm, msg, messageInfo, false, state, orgState, transToState);
+        }
+
+        private void addLocked(StateMachine sm, Message msg, String messageInfo,
+                boolean formatInfo, IState state, IState orgState, IState transToState) {
             mCount += 1;
-            if (mLogRecVector.size() < mMaxSize) {
-                mLogRecVector.add(new LogRec(sm, msg, messageInfo, state, orgState, transToState));
+            if (mMaxSize == 0) {
+                return;
+            }
+            int index;
+            if (mSize < mMaxSize) {
+                index = mOldestIndex + mSize;
+                if (index >= mMaxSize) {
+                    index -= mMaxSize;
+                }
+                mSize++;
             } else {
-                LogRec pmi = mLogRecVector.get(mOldestIndex);
+                index = mOldestIndex;
                 mOldestIndex += 1;
                 if (mOldestIndex >= mMaxSize) {
                     mOldestIndex = 0;
                 }
-                pmi.update(sm, msg, messageInfo, state, orgState, transToState);
             }
+            mSm = sm;
+            mTime[index] = System.currentTimeMillis();
+            if (msg != null) {
+                mWhat[index] = msg.what;
+                mArg1[index] = msg.arg1;
+                mArg2[index] = msg.arg2;
+                mObj[index] = msg.obj;
+            } else {
+                mWhat[index] = 0;
+                mArg1[index] = 0;
+                mArg2[index] = 0;
+                mObj[index] = null;
+            }
+            mInfo[index] = messageInfo;
+            mFormatInfo[index] = formatInfo;
+            mState[index] = state;
+            mOrgState[index] = orgState;
+            mDstState[index] = transToState;
+        }
+
+        /**
+         * @return a copy of the records, oldest first.
+         */
+        Collection<LogRec> copy() {
+            Vector<LogRec> vlr = new Vector<LogRec>();
+            int size = size();
+            for (int i = 0; i < size; i++) {
+                LogRec lr = get(i);
+                if (lr != null) {
+                    vlr.add(lr);
+                }
+            }
+            return vlr;
+        }
+    }
+
+    /**
+     * Time messages spent queued and in processMessage, per state and per message.
+     *
+     * Each measure goes into a histogram with fixed decimal buckets, so recording a message
+     * only allocates the first time a state or message is seen.
+     */
+    private static class MessageTimingStats {
+        /** Upper bounds of the buckets in microseconds, the last bucket is unbounded */
+        private static final long[] BUCKET_LIMITS_US =
+                {100, 1000, 10 * 1000, 100 * 1000, 1000 * 1000, 10 * 1000 * 1000};
+
+        private static class Histogram {
+            final long[] mBuckets = new long[BUCKET_LIMITS_US.length + 1];
+            long mCount;
+            long mTotalUs;
+            long mMaxUs;
+
+            void add(long us) {
+                int bucket = 0;
+                while (bucket < BUCKET_LIMITS_US.length && us >= BUCKET_LIMITS_US[bucket]) {
+                    bucket++;
+                }
+                mBuckets[bucket]++;
+                mCount++;
+                mTotalUs += us;
+                if (us > mMaxUs) {
+                    mMaxUs = us;
+                }
+            }
+
+            void dump(PrintWriter pw, String name) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(name).append(": n=").append(mCount)
+                        .append(" avg=").append(mCount == 0 ? 0 : mTotalUs / mCount)
+                        .append("us max=").append(mMaxUs).append("us [");
+                for (int i = 0; i < mBuckets.length; i++) {
+                    sb.append(i == 0 ? "" : " ").append(mBuckets[i]);
+                }
+                pw.println(sb.append("]").toString());
+            }
+        }
+
+        private final HashMap<IState, Histogram> mProcessedByState = new HashMap<>();
+        private final SparseArray<Histogram> mProcessedByWhat = new SparseArray<>();
+        private final SparseArray<Histogram> mQueuedByWhat = new SparseArray<>();
+
+        /**
+         * Record a processed message.
+         *
+         * @param state that handled the message
+         * @param queuedMs time the message waited past its due time, negative if unknown
+         */
+        synchronized void add(int what, IState state, long queuedMs, long processedUs) {
+            if (queuedMs >= 0) {
+                get(mQueuedByWhat, what).add(queuedMs * 1000);
+            }
+            get(mProcessedByWhat, what).add(processedUs);
+            if (state != null) {
+                Histogram histogram = mProcessedByState.get(state);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    mProcessedByState.put(state, histogram);
+                }
+                histogram.add(processedUs);
+            }
+        }
+
+        private static Histogram get(SparseArray<Histogram> histograms, int what) {
+            Histogram histogram = histograms.get(what);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(what, histogram);
+            }
+            return histogram;
+        }
+
+        synchronized void clear() {
+            mProcessedByState.clear();
+            mProcessedByWhat.clear();
+            mQueuedByWhat.clear();
+        }
+
+        synchronized void dump(PrintWriter pw, StateMachine sm) {
+            StringBuilder limits = new StringBuilder();
+            for (long limit : BUCKET_LIMITS_US) {
+                limits.append(" <").append(limit);
+            }
+            pw.println(" message timing, buckets in us:" + limits + " >=");
+            for (Map.Entry<IState, Histogram> entry : mProcessedByState.entrySet()) {
+                entry.getValue().dump(pw, "  processed in " + entry.getKey().getName());
+            }
+            for (int i = 0; i < mProcessedByWhat.size(); i++) {
+                mProcessedByWhat.valueAt(i).dump(pw,
+                        "  processed " + whatToString(sm, mProcessedByWhat.keyAt(i)));
+            }
+            for (int i = 0; i < mQueuedByWhat.size(); i++) {
+                mQueuedByWhat.valueAt(i).dump(pw,
+                        "  queued " + whatToString(sm, mQueuedByWhat.keyAt(i)));
+            }
+        }
+
+        private static String whatToString(StateMachine sm, int what) {
+            String name = sm.getWhatToString(what);
+            return TextUtils.isEmpty(name) ? Integer.toString(what) : name;
         }
     }
 
@@ -694,6 +961,9 @@ public class StateMachine {
         /** A list of log records including messages this state machine has processed */
         private LogRecords mLogRecords = new LogRecords();
 
+        /** Timing of the processed messages, null when disabled */
+        private volatile MessageTimingStats mTimingStats = new MessageTimingStats();
+
         /** true if construction of the state machine has not been completed */
         private boolean mIsConstructionCompleted;
 
@@ -805,7 +1075,18 @@ public class StateMachine {
                 State msgProcessedState = null;
                 if (mIsConstructionCompleted || (mMsg.what == SM_QUIT_CMD)) {
                     /** Normal path */
-                    msgProcessedState = processMsg(msg);
+                    MessageTimingStats timingStats = mTimingStats;
+                    if (timingStats != null && msg.obj != mSmHandlerObj) {
+                        // Messages sent at the front of the queue have no due time
+                        long queuedMs = msg.getWhen() == 0 ? -1
+                                : SystemClock.uptimeMillis() - msg.getWhen();
+                        long startNanos = System.nanoTime();
+                        msgProcessedState = processMsg(msg);
+                        timingStats.add(msg.what, msgProcessedState, queuedMs,
+                                (System.nanoTime() - startNanos) / 1000);
+                    } else {
+                        msgProcessedState = processMsg(msg);
+                    }
                 } else if (!mIsConstructionCompleted && (mMsg.what == SM_INIT_CMD)
                         && (mMsg.obj == mSmHandlerObj)) {
                     /** Initial one time path. */
@@ -848,13 +1129,11 @@ public class StateMachine {
             if (mLogRecords.logOnlyTransitions()) {
                 /** Record only if there is a transition */
                 if (mDestState != null) {
-                    mLogRecords.add(mSm, mMsg, mSm.getLogRecString(mMsg), msgProcessedState,
-                            orgState, mDestState);
+                    mLogRecords.addMessage(mSm, mMsg, msgProcessedState, orgState, mDestState);
                 }
             } else if (recordLogMsg) {
                 /** Record message */
-                mLogRecords.add(mSm, mMsg, mSm.getLogRecString(mMsg), msgProcessedState, orgState,
-                        mDestState);
+                mLogRecords.addMessage(mSm, mMsg, msgProcessedState, orgState, mDestState);
             }
 
             State destState = mDestState;
@@ -1480,7 +1759,7 @@ public class StateMachine {
     /**
      * Set number of log records to maintain and clears all current records.
      *
-     * @param maxSize number of messages to maintain at anyone time.
+     * @param maxSize number of messages to maintain at anyone time, 0 to disable the records.
      */
     public final void setLogRecSize(int maxSize) {
         mSmHandler.mLogRecords.setSize(maxSize);
@@ -1495,6 +1774,19 @@ public class StateMachine {
         mSmHandler.mLogRecords.setLogOnlyTransitions(enable);
     }
 
+    /**
+     * Enable or disable the timing of the processed messages, enabled by default. Enabling
+     * it clears the previous timings.
+     *
+     * @param enable {@code true} to enable, {@code false} to disable
+     */
+    public final void setTimingStatsEnabled(boolean enable) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+        smh.mTimingStats = enable ? new MessageTimingStats() : null;
+    }
+
     /**
      * @return the number of log records currently readable
      */
@@ -1540,14 +1832,11 @@ public class StateMachine {
      * @return a copy of LogRecs as a collection
      */
     public final Collection<LogRec> copyLogRecs() {
-        Vector<LogRec> vlr = new Vector<LogRec>();
         SmHandler smh = mSmHandler;
-        if (smh != null) {
-            for (LogRec lr : smh.mLogRecords.mLogRecVector) {
-                vlr.add(lr);
-            }
+        if (smh == null) {
+            return new Vector<LogRec>();
         }
-        return vlr;
+        return smh.mLogRecords.copy();
     }
 
     /**
@@ -2076,6 +2365,11 @@ public class StateMachine {
             pw.flush();
         }
         pw.println("curState=" + getCurrentState().getName());
+        SmHandler smh = mSmHandler;
+        MessageTimingStats timingStats = smh == null ? null : smh.mTimingStats;
+        if (timingStats != null) {
+            timingStats.dump(pw, this);
+        }
     }
 
     @Override
@@ -16,6 +16,8 @@
 
 package com.android.bluetooth;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -678,6 +680,114 @@ public class StateMachineTest {
         if (sm0.isDbg()) tlog("testStateMachine0 X");
     }
 
+    /**
+     * Tests that the info of a log record is only formatted when the record is read.
+     */
+    static class StateMachineLogInfo extends StateMachine {
+        StateMachineLogInfo(String name, int logRecSize) {
+            super(name);
+            mThisSm = this;
+            setDbg(DBG);
+            setLogRecSize(logRecSize);
+
+            // Setup state machine with 1 state
+            addState(mS1);
+
+            // Set the initial state
+            setInitialState(mS1);
+        }
+
+        class S1 extends State {
+            @Override
+            public boolean processMessage(Message message) {
+                if (message.what == TEST_CMD_3) {
+                    transitionToHaltingState();
+                }
+                return HANDLED;
+            }
+        }
+
+        @Override
+        protected String getLogRecString(Message msg) {
+            mFormatCount++;
+            return "arg1=" + msg.arg1 + " obj=" + msg.obj;
+        }
+
+        @Override
+        protected void onHalting() {
+            synchronized (mThisSm) {
+                mThisSm.notifyAll();
+            }
+        }
+
+        private final StateMachineLogInfo mThisSm;
+        private S1 mS1 = new S1();
+        private int mFormatCount;
+    }
+
+    private static void runStateMachineLogInfo(StateMachineLogInfo sm) {
+        sm.start();
+        synchronized (sm) {
+            for (int i = 1; i <= 3; i++) {
+                sm.sendMessage(sm.obtainMessage(i, 10 * i, 0, "obj" + i));
+            }
+
+            try {
+                // wait for the messages to be handled
+                sm.wait();
+            } catch (InterruptedException e) {
+                tloge("runStateMachineLogInfo: exception while waiting " + e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testLogRecInfoIsFormattedWhenRead() throws Exception {
+        StateMachineLogInfo sm = new StateMachineLogInfo("smLogInfo", 2);
+        runStateMachineLogInfo(sm);
+
+        Assert.assertEquals(3, sm.getLogRecCount());
+        Assert.assertEquals(2, sm.getLogRecSize());
+        Assert.assertEquals(0, sm.mFormatCount);
+
+        LogRec lr = sm.getLogRec(0);
+        Assert.assertEquals(TEST_CMD_2, lr.getWhat());
+        Assert.assertEquals("arg1=20 obj=obj2", lr.getInfo());
+        Assert.assertEquals(sm.mS1, lr.getState());
+        Assert.assertEquals(1, sm.mFormatCount);
+
+        Assert.assertEquals("arg1=30 obj=obj3", sm.getLogRec(1).getInfo());
+        Assert.assertNull(sm.getLogRec(2));
+    }
+
+    @Test
+    public void testZeroLogRecSizeKeepsNoRecords() throws Exception {
+        StateMachineLogInfo sm = new StateMachineLogInfo("smNoLogRecs", 0);
+        runStateMachineLogInfo(sm);
+
+        Assert.assertEquals(3, sm.getLogRecCount());
+        Assert.assertEquals(0, sm.getLogRecSize());
+        Assert.assertNull(sm.getLogRec(0));
+    }
+
+    @Test
+    public void testDumpIncludesMessageTiming() throws Exception {
+        StateMachineLogInfo sm = new StateMachineLogInfo("smTiming", 2);
+        runStateMachineLogInfo(sm);
+
+        StringWriter out = new StringWriter();
+        sm.dump(null, new PrintWriter(out), null);
+        String dump = out.toString();
+        Assert.assertTrue(dump.contains("message timing"));
+        Assert.assertTrue(dump.contains("processed in S1: n=3"));
+        Assert.assertTrue(dump.contains("processed 2: n=1"));
+
+        sm.setTimingStatsEnabled(false);
+        out = new StringWriter();
+        sm.dump(null, new PrintWriter(out), null);
+        Assert.assertFalse(out.toString().contains("message timing"));
+    }
+
     /**
      * This tests enter/exit and transitions to the same state.
      * The state machine has one state, it receives two messages
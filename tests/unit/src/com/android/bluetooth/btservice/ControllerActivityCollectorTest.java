@@ -0,0 +1,121 @@
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothActivityEnergyInfo;
+import android.bluetooth.UidTraffic;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.TestLooperManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ControllerActivityCollector}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ControllerActivityCollectorTest {
+    private static final long TIMEOUT_MILLIS = 30;
+    private static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    private HandlerThread mHandlerThread;
+    private TestLooperManager mTestLooperManager;
+    private ControllerActivityCollector mCollector;
+    private int mReads = 0;
+    private final List<BluetoothActivityEnergyInfo> mResults = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread("ControllerActivityCollectorTestHandlerThread");
+        mHandlerThread.start();
+        mTestLooperManager = InstrumentationRegistry.getInstrumentation()
+                .acquireLooperManager(mHandlerThread.getLooper());
+        mCollector = new ControllerActivityCollector(new Handler(mHandlerThread.getLooper()),
+                () -> mReads++, TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        mTestLooperManager.release();
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneRead() {
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        Assert.assertEquals(1, mReads);
+        Assert.assertTrue(mResults.isEmpty());
+
+        mCollector.onEnergyInfo(0, 10, 20, 30, 40, new UidTraffic[0]);
+
+        Assert.assertEquals(2, mResults.size());
+        Assert.assertSame(mResults.get(0), mResults.get(1));
+        Assert.assertEquals(10, mResults.get(0).getControllerTxTimeMillis());
+    }
+
+    @Test
+    public void testFreshReportIsServedFromCache() {
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        mCollector.onEnergyInfo(0, 10, 20, 30, 40, new UidTraffic[0]);
+
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        Assert.assertEquals(1, mReads);
+        Assert.assertEquals(2, mResults.size());
+
+        // A zero freshness window always reads the controller
+        mCollector.request(0, mResults::add);
+        Assert.assertEquals(2, mReads);
+    }
+
+    @Test
+    public void testTimeoutAnswersWithAccumulatedTotals() {
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        Message msg = mTestLooperManager.next();
+        mTestLooperManager.execute(msg);
+
+        Assert.assertEquals(1, mResults.size());
+        Assert.assertEquals(0, mResults.get(0).getControllerTxTimeMillis());
+
+        // The timed out answer is not cached
+        mCollector.request(MAX_AGE_MILLIS, mResults::add);
+        Assert.assertEquals(2, mReads);
+    }
+
+    @Test
+    public void testUidTrafficIsAccumulated() {
+        mCollector.request(0, mResults::add);
+        mCollector.onEnergyInfo(0, 0, 0, 0, 0, new UidTraffic[] {
+                new UidTraffic(1000, 10, 20), new UidTraffic(2000, 0, 0)});
+        mCollector.request(0, mResults::add);
+        mCollector.onEnergyInfo(0, 0, 0, 0, 0, new UidTraffic[] {
+                new UidTraffic(3000, 1, 1)});
+        mCollector.request(0, mResults::add);
+        mCollector.onEnergyInfo(0, 0, 0, 0, 0, new UidTraffic[] {
+                new UidTraffic(3000, 1, 1)});
+
+        UidTraffic[] first = mResults.get(0).getUidTraffic();
+        Assert.assertEquals(1, first.length);
+        Assert.assertEquals(1000, first[0].getUid());
+
+        UidTraffic[] second = mResults.get(1).getUidTraffic();
+        Assert.assertEquals(2, second.length);
+        // Unchanged entries are shared between reports
+        Assert.assertSame(first[0], second[0]);
+
+        UidTraffic[] third = mResults.get(2).getUidTraffic();
+        Assert.assertEquals(2, third[1].getRxBytes());
+        Assert.assertEquals(1, second[1].getRxBytes());
+    }
+}
@@ -0,0 +1,95 @@
+package com.android.bluetooth.btservice;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link DiscoveryResultAggregator}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DiscoveryResultAggregatorTest {
+    private static final long DEVICE = 0x000102030405L;
+    private static final String PACKAGE = "com.example.app";
+    private static final int CLASS = 0x5a020c;
+
+    private DiscoveryResultAggregator mAggregator;
+
+    @Before
+    public void setUp() {
+        mAggregator = new DiscoveryResultAggregator();
+        mAggregator.reset(1000, 6, 2);
+    }
+
+    @Test
+    public void testDuplicateWithinWindowIsSuppressed() {
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_NEW,
+                mAggregator.onDeviceFound(DEVICE, -60, "name", CLASS, 0));
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_SUPPRESSED,
+                mAggregator.onDeviceFound(DEVICE, -62, "name", CLASS, 500));
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_UPDATED,
+                mAggregator.onDeviceFound(DEVICE, -62, "name", CLASS, 1000));
+    }
+
+    @Test
+    public void testChangesWithinWindowAreDelivered() {
+        mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 0);
+
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_UPDATED,
+                mAggregator.onDeviceFound(DEVICE, -70, null, CLASS, 10));
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_UPDATED,
+                mAggregator.onDeviceFound(DEVICE, -70, "name", CLASS, 20));
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_SUPPRESSED,
+                mAggregator.onDeviceFound(DEVICE, -70, null, CLASS, 30));
+    }
+
+    @Test
+    public void testPackageBudgetOnlyLimitsUpdates() {
+        Assert.assertTrue(mAggregator.tryDeliver(PACKAGE, DiscoveryResultAggregator.RESULT_NEW));
+        Assert.assertTrue(
+                mAggregator.tryDeliver(PACKAGE, DiscoveryResultAggregator.RESULT_UPDATED));
+        Assert.assertTrue(
+                mAggregator.tryDeliver(PACKAGE, DiscoveryResultAggregator.RESULT_UPDATED));
+        Assert.assertFalse(
+                mAggregator.tryDeliver(PACKAGE, DiscoveryResultAggregator.RESULT_UPDATED));
+        Assert.assertTrue(mAggregator.tryDeliver(PACKAGE, DiscoveryResultAggregator.RESULT_NEW));
+
+        Assert.assertEquals(4, mAggregator.getDeliveredCount());
+        Assert.assertEquals(1, mAggregator.getSuppressedCount());
+    }
+
+    @Test
+    public void testResetForgetsDevices() {
+        mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 0);
+        mAggregator.reset(1000, 6, 2);
+
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_NEW,
+                mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 10));
+    }
+
+    @Test
+    public void testZeroWindowDisablesAggregation() {
+        mAggregator.reset(0, 6, 2);
+        mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 0);
+
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_NEW,
+                mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 0));
+    }
+
+    @Test
+    public void testUntrackedDevicesAreNotCoalesced() {
+        for (int i = 0; i < DiscoveryResultAggregator.MAX_TRACKED_DEVICES; i++) {
+            mAggregator.onDeviceFound(DEVICE + 1 + i, -60, null, CLASS, 0);
+        }
+
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_NEW,
+                mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 0));
+        Assert.assertEquals(DiscoveryResultAggregator.RESULT_NEW,
+                mAggregator.onDeviceFound(DEVICE, -60, null, CLASS, 10));
+    }
+}
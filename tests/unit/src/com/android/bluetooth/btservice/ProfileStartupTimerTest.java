@@ -0,0 +1,81 @@
+package com.android.bluetooth.btservice;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link ProfileStartupTimer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileStartupTimerTest {
+    // Stand-ins for profile services.
+    private static final Class FIRST = Integer.class;
+    private static final Class SECOND = Long.class;
+    private static final Class[] SERVICES = {FIRST, SECOND};
+
+    private final ProfileStartupTimer mTimer = new ProfileStartupTimer();
+
+    @Test
+    public void testStartupCompletesWithLastService() {
+        mTimer.onStartRequested(SERVICES, 0);
+        mTimer.onStarted(SECOND, 10);
+        Assert.assertEquals(-1, mTimer.getLastStartupMillis());
+
+        mTimer.onStarted(FIRST, 50);
+        Assert.assertEquals(50, mTimer.getLastStartupMillis());
+
+        StringBuilder sb = new StringBuilder();
+        mTimer.dump(sb);
+        Assert.assertTrue(sb.toString().contains("Integer: start 50 ms"));
+        Assert.assertTrue(sb.toString().contains("Long: start 10 ms"));
+    }
+
+    @Test
+    public void testShutdownCompletesWithLastService() {
+        startAll();
+
+        mTimer.onStopRequested(SERVICES, 100);
+        mTimer.onStopped(FIRST, 110);
+        Assert.assertEquals(-1, mTimer.getLastShutdownMillis());
+
+        mTimer.onStopped(SECOND, 130);
+        Assert.assertEquals(30, mTimer.getLastShutdownMillis());
+    }
+
+    @Test
+    public void testServicesAreTakenAgainOnEveryStart() {
+        startAll();
+        mTimer.onStopRequested(SERVICES, 100);
+        mTimer.onStopped(FIRST, 100);
+        mTimer.onStopped(SECOND, 100);
+
+        // SECOND is not supported any more
+        mTimer.onStartRequested(new Class[] {FIRST}, 200);
+        mTimer.onStarted(FIRST, 220);
+        Assert.assertEquals(20, mTimer.getLastStartupMillis());
+
+        StringBuilder sb = new StringBuilder();
+        mTimer.dump(sb);
+        Assert.assertFalse(sb.toString().contains("Long"));
+    }
+
+    @Test
+    public void testUnknownServiceIsIgnored() {
+        startAll();
+
+        mTimer.onStarted(Double.class, 10);
+        mTimer.onStopped(Double.class, 10);
+        Assert.assertEquals(0, mTimer.getLastStartupMillis());
+    }
+
+    private void startAll() {
+        mTimer.onStartRequested(SERVICES, 0);
+        mTimer.onStarted(FIRST, 0);
+        mTimer.onStarted(SECOND, 0);
+    }
+}
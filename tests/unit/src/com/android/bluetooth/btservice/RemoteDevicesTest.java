@@ -436,6 +436,51 @@ public class RemoteDevicesTest {
                         new Object[]{1, "WRONG", "WRONG"}));
     }
 
+    @Test
+    public void testAddressToLong() {
+        byte[] address = Utils.getByteAddress(mDevice1);
+
+        Assert.assertEquals(0x001122334455L, RemoteDevices.addressToLong(address));
+        Assert.assertEquals(0x001122334455L, RemoteDevices.addressToLong(TEST_BT_ADDR_1));
+        Assert.assertEquals(0xAABBCCDDEEFFL, RemoteDevices.addressToLong("aa:bb:cc:dd:ee:ff"));
+        Assert.assertEquals(-1, RemoteDevices.addressToLong("00:11:22:33:44"));
+        Assert.assertEquals(-1, RemoteDevices.addressToLong(new byte[5]));
+    }
+
+    @Test
+    public void testGetDevice() {
+        byte[] address = Utils.getByteAddress(mDevice1);
+        Assert.assertNull(mRemoteDevices.getDevice(address));
+
+        mRemoteDevices.addDeviceProperties(address);
+
+        Assert.assertEquals(mDevice1, mRemoteDevices.getDevice(address));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+    }
+
+    @Test
+    public void testEvictionKeepsBondedAndRecentlyUsedDevices() {
+        byte[] bonded = new byte[] {0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+        byte[] used = new byte[] {0x00, 0x00, 0x00, 0x00, 0x00, 0x02};
+        byte[] evicted = new byte[] {0x00, 0x00, 0x00, 0x00, 0x00, 0x03};
+        mRemoteDevices.addDeviceProperties(bonded).setBondState(BluetoothDevice.BOND_BONDED);
+        mRemoteDevices.addDeviceProperties(used);
+        mRemoteDevices.addDeviceProperties(evicted);
+
+        // Fill the table up to its limit, touching one of the older devices.
+        for (int i = 3; i < 200; i++) {
+            mRemoteDevices.addDeviceProperties(
+                    new byte[] {0x01, 0x00, 0x00, 0x00, (byte) (i >> 8), (byte) i});
+        }
+        Assert.assertNotNull(mRemoteDevices.getDevice(used));
+        mRemoteDevices.addDeviceProperties(new byte[] {0x02, 0x00, 0x00, 0x00, 0x00, 0x00});
+
+        Assert.assertNotNull(mRemoteDevices.getDevice(bonded));
+        Assert.assertNotNull(mRemoteDevices.getDevice(used));
+        Assert.assertNull(mRemoteDevices.getDevice(evicted));
+        verifyNoMoreInteractions(mAdapterService);
+    }
+
     private static void verifyBatteryLevelChangedIntent(BluetoothDevice device, int batteryLevel,
             ArgumentCaptor<Intent> intentArgument) {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
@@ -257,6 +257,53 @@ public final class BluetoothKeystoreServiceTest {
                 mBluetoothKeystoreService.getNameDecryptKey()));
     }
 
+    @Test
+    public void testDecryptManyKeys() {
+        List<String> configData = new ArrayList<>(mConfigTestData);
+        for (int i = 0; i < 500; i++) {
+            String address = String.format("00:11:22:33:%02x:%02x", i >> 8, i & 0xff);
+            configData.add("[" + address + "]");
+            configData.add("LinkKey = " + String.format("%032x", i));
+            mNameDecryptKeyResult.put(address + "-LinkKey", String.format("%032x", i));
+        }
+        overwriteConfigFile(configData);
+        Assert.assertTrue(parseConfigFile(CONFIG_FILE_PATH));
+        mBluetoothKeystoreService.saveEncryptedKey();
+        mBluetoothKeystoreService.cleanupMemory();
+
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        // Wait for decryption to complete
+        mBluetoothKeystoreService.stopThread();
+
+        Assert.assertTrue(doCompareMap(mNameDecryptKeyResult,
+                mBluetoothKeystoreService.getNameDecryptKey()));
+    }
+
+    @Test
+    public void testSaveEncryptedKeyAppendsChangedKeys() throws IOException {
+        testEncrypt();
+        mBluetoothKeystoreService.saveEncryptedKey();
+        int lineCount = Files.readAllLines(Paths.get(CONFIG_FILE_ENCRYPTION_PATH)).size();
+
+        // change one key and remove another
+        Assert.assertTrue(setEncryptKeyOrRemoveKey("aa:bb:cc:dd:ee:ff-LinkKey",
+                "ffeeddccbbaa00998877665544332211"));
+        Assert.assertTrue(setEncryptKeyOrRemoveKey("aa:bb:cc:dd:ee:ff-LE_KEY_PID", ""));
+        mBluetoothKeystoreService.saveEncryptedKey();
+        Assert.assertEquals(lineCount + 2,
+                Files.readAllLines(Paths.get(CONFIG_FILE_ENCRYPTION_PATH)).size());
+
+        mBluetoothKeystoreService.cleanupMemory();
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+        mBluetoothKeystoreService.stopThread();
+
+        mNameDecryptKeyResult.put("aa:bb:cc:dd:ee:ff-LinkKey",
+                "ffeeddccbbaa00998877665544332211");
+        mNameDecryptKeyResult.remove("aa:bb:cc:dd:ee:ff-LE_KEY_PID");
+        Assert.assertTrue(doCompareMap(mNameDecryptKeyResult,
+                mBluetoothKeystoreService.getNameDecryptKey()));
+    }
+
     @Test
     public void testCompareHashFile() {
         // save config checksum.
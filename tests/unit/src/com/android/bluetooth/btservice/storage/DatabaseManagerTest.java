@@ -33,6 +33,7 @@ import android.bluetooth.BluetoothProfile;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
 
 import androidx.room.Room;
 import androidx.room.testing.MigrationTestHelper;
@@ -56,7 +57,11 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -81,6 +86,7 @@ public final class DatabaseManagerTest {
     private static final int A2DP_ENALBED_OP_CODEC_TEST = 1;
     private static final int MAX_META_ID = 16;
     private static final byte[] TEST_BYTE_ARRAY = "TEST_VALUE".getBytes();
+    private static final int TIMEOUT_MS = 1000;
 
     @Rule
     public MigrationTestHelper testHelper = new MigrationTestHelper(
@@ -616,6 +622,131 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testLoadWithDuplicateConnectionNumbersWritesOneTransaction() {
+        final int numDevices = 100;
+        for (int i = 0; i < numDevices; i++) {
+            Metadata data = new Metadata(getTestAddress(i));
+            // As left by the migration that added the column
+            data.last_active_time = 0;
+            data.is_active_a2dp_device = false;
+            mDatabase.insert(data);
+        }
+        long transactions = mDatabaseManager.getFlushTransactionCount();
+        long rows = mDatabaseManager.getRowsWrittenCount();
+
+        restartDatabaseManagerHelper();
+
+        // Every row but the one keeping number 0 is renumbered, in one transaction
+        Assert.assertEquals(1, mDatabaseManager.getFlushTransactionCount() - transactions);
+        Assert.assertEquals(numDevices - 1, mDatabaseManager.getRowsWrittenCount() - rows);
+        Set<Long> connectionNumbers = new HashSet<>();
+        for (Metadata data : mDatabase.load()) {
+            connectionNumbers.add(data.last_active_time);
+        }
+        Assert.assertEquals(numDevices, connectionNumbers.size());
+        Assert.assertEquals(numDevices,
+                mDatabaseManager.getMostRecentlyConnectedDevices().size());
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testLoadWithDistinctConnectionNumbersWritesNothing() {
+        final int numDevices = 100;
+        for (int i = 0; i < numDevices; i++) {
+            Metadata data = new Metadata(getTestAddress(i));
+            // Leave gaps, as connecting and removing devices does
+            data.last_active_time = 1000 + 2 * i;
+            data.is_active_a2dp_device = false;
+            mDatabase.insert(data);
+        }
+        long transactions = mDatabaseManager.getFlushTransactionCount();
+
+        restartDatabaseManagerHelper();
+
+        Assert.assertEquals(0, mDatabaseManager.getFlushTransactionCount() - transactions);
+        List<BluetoothDevice> mostRecentlyConnectedDevicesOrdered =
+                mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(numDevices, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(getTestAddress(numDevices - 1),
+                mostRecentlyConnectedDevicesOrdered.get(0).getAddress());
+
+        // A new connection goes after the highest loaded number
+        mDatabaseManager.setConnection(mostRecentlyConnectedDevicesOrdered.get(numDevices - 1),
+                false);
+        Assert.assertEquals(getTestAddress(0),
+                mDatabaseManager.getMostRecentlyConnectedDevices().get(0).getAddress());
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testUpdatesOfSameDeviceAreCoalesced() throws Exception {
+        CountDownLatch latch = blockHandlerThread();
+        long transactions = mDatabaseManager.getFlushTransactionCount();
+        long rows = mDatabaseManager.getRowsWrittenCount();
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setConnection(mTestDevice, true);
+        latch.countDown();
+        // Wait for database update
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(1, mDatabaseManager.getFlushTransactionCount() - transactions);
+        Assert.assertEquals(1, mDatabaseManager.getRowsWrittenCount() - rows);
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.A2DP));
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testFlushPendingWritesIsSynchronous() throws Exception {
+        CountDownLatch latch = blockHandlerThread();
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.flushPendingWrites();
+
+        Assert.assertEquals(1, mDatabase.load().size());
+        latch.countDown();
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.mMetadataCache.clear();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testDeleteDropsPendingWrite() throws Exception {
+        CountDownLatch latch = blockHandlerThread();
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        Metadata data = mDatabaseManager.mMetadataCache.remove(TEST_BT_ADDR);
+        mDatabaseManager.deleteDatabase(data);
+        latch.countDown();
+        // Wait for database update
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(0, mDatabase.load().size());
+    }
+
     @Test
     public void testDatabaseMigration_100_101() throws IOException {
         // Create a database with version 100
@@ -1065,6 +1196,28 @@ public final class DatabaseManagerTest {
                 CoreMatchers.is(data));
     }
 
+    /**
+     * Helper function to build a distinct device address from an index
+     */
+    static String getTestAddress(int index) {
+        return String.format("00:00:00:00:%02X:%02X", index / 256, index % 256);
+    }
+
+    /**
+     * Helper function to hold the handler thread until the returned latch is released
+     */
+    CountDownLatch blockHandlerThread() {
+        CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mDatabaseManager.getHandlerLooper()).post(() -> {
+            try {
+                latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return latch;
+    }
+
     void restartDatabaseManagerHelper() {
         Metadata data = new Metadata(LOCAL_STORAGE);
         data.migrated = true;
@@ -0,0 +1,79 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link BatchScanReportParser}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportParserTest {
+    private static final long NOW_NANOS = 10_000_000_000L;
+
+    // Two full records: address (little endian), address type, tx power, rssi, timestamp,
+    // advertising data and scan response.
+    private static final byte[] FULL_RECORDS = new byte[] {
+            0x05, 0x04, 0x03, 0x02, 0x01, 0x00, 0x00, 0x00, (byte) 0xc4, 0x02, 0x00,
+            0x03, 0x02, 0x01, 0x06,
+            0x00,
+            0x0b, 0x0a, 0x09, 0x08, 0x07, 0x06, 0x00, 0x00, (byte) 0xba, 0x00, 0x00,
+            0x00,
+            0x04, 0x03, 0x08, 0x41, 0x42};
+
+    private static final byte[] TRUNCATED_RECORDS = new byte[] {
+            0x05, 0x04, 0x03, 0x02, 0x01, 0x00, 0x00, 0x00, (byte) 0xc4, 0x01, 0x00,
+            0x0b, 0x0a, 0x09, 0x08, 0x07, 0x06, 0x00, 0x00, (byte) 0xba, 0x00, 0x00};
+
+    @Test
+    public void testFullRecords() {
+        BatchScanReportParser parser = new BatchScanReportParser(
+                ScanManager.SCAN_RESULT_TYPE_FULL, 2, FULL_RECORDS, NOW_NANOS);
+
+        Assert.assertTrue(parser.next());
+        Assert.assertTrue(parser.isAddress("00:01:02:03:04:05"));
+        Assert.assertFalse(parser.isAddress("06:07:08:09:0A:0B"));
+        Assert.assertEquals(-60, parser.getRssi());
+        Assert.assertEquals(NOW_NANOS - 100_000_000L, parser.getTimestampNanos());
+        ScanResult result = parser.toScanResult(null);
+        Assert.assertArrayEquals(new byte[] {0x02, 0x01, 0x06},
+                result.getScanRecord().getBytes());
+
+        Assert.assertTrue(parser.next());
+        Assert.assertTrue(parser.isAddress("06:07:08:09:0a:0b"));
+        Assert.assertArrayEquals(new byte[] {0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b},
+                parser.getAddress());
+        Assert.assertEquals("AB", parser.toScanResult(null).getScanRecord().getDeviceName());
+
+        Assert.assertFalse(parser.next());
+    }
+
+    @Test
+    public void testTruncatedRecords() {
+        BatchScanReportParser parser = new BatchScanReportParser(
+                ScanManager.SCAN_RESULT_TYPE_TRUNCATED, 2, TRUNCATED_RECORDS, NOW_NANOS);
+
+        Assert.assertTrue(parser.next());
+        Assert.assertEquals(NOW_NANOS - 50_000_000L, parser.getTimestampNanos());
+        Assert.assertTrue(parser.next());
+        Assert.assertEquals(-70, parser.getRssi());
+        Assert.assertFalse(parser.next());
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() {
+        byte[] data = new byte[FULL_RECORDS.length - 1];
+        System.arraycopy(FULL_RECORDS, 0, data, 0, data.length);
+        BatchScanReportParser parser = new BatchScanReportParser(
+                ScanManager.SCAN_RESULT_TYPE_FULL, 2, data, NOW_NANOS);
+
+        Assert.assertTrue(parser.next());
+        Assert.assertFalse(parser.next());
+    }
+}
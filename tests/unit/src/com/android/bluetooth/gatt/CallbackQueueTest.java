@@ -0,0 +1,111 @@
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test cases for {@link CallbackQueue}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CallbackQueueTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+
+    @Test
+    @SmallTest
+    public void testOfferAndPoll() {
+        CallbackQueue queue = new CallbackQueue(4);
+        CallbackInfo info = new CallbackInfo(null, 0);
+
+        Assert.assertFalse(queue.poll(info));
+        queue.offer(ADDRESS, 1, 10);
+        queue.offer(ADDRESS, 2, 20);
+        Assert.assertEquals(2, queue.size());
+
+        Assert.assertTrue(queue.poll(info));
+        Assert.assertEquals(ADDRESS, info.address);
+        Assert.assertEquals(1, info.status);
+        Assert.assertEquals(10, info.handle);
+        Assert.assertTrue(queue.poll(info));
+        Assert.assertEquals(20, info.handle);
+        Assert.assertFalse(queue.poll(info));
+    }
+
+    @Test
+    @SmallTest
+    public void testOverflowKeepsOrder() {
+        CallbackQueue queue = new CallbackQueue(2);
+        CallbackInfo info = new CallbackInfo(null, 0);
+
+        queue.offer(ADDRESS, 0, 1);
+        queue.offer(ADDRESS, 0, 2);
+        queue.offer(ADDRESS, 0, 3);
+        Assert.assertEquals(1, queue.getOverflowCount());
+        Assert.assertEquals(3, queue.size());
+
+        // Room in the ring again, but the spilled callback stays ahead of the new one
+        Assert.assertTrue(queue.poll(info));
+        Assert.assertEquals(1, info.handle);
+        queue.offer(ADDRESS, 0, 4);
+
+        for (int handle = 2; handle <= 4; handle++) {
+            Assert.assertTrue(queue.poll(info));
+            Assert.assertEquals(handle, info.handle);
+        }
+        Assert.assertFalse(queue.poll(info));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    @SmallTest
+    public void testCapacityMustBePowerOfTwo() {
+        new CallbackQueue(3);
+    }
+
+    /**
+     * Writes at a high rate while the consumer drains only when the congestion flag clears,
+     * and checks that every callback is delivered once and in order.
+     */
+    @Test
+    @MediumTest
+    public void testCongestionTogglingStress() throws Exception {
+        final int count = 200_000;
+        final CallbackQueue queue = new CallbackQueue(64);
+        final AtomicBoolean congested = new AtomicBoolean(true);
+        final AtomicBoolean producerDone = new AtomicBoolean(false);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(ADDRESS, 0, i);
+                if (i % 97 == 0) {
+                    congested.set(!congested.get());
+                }
+            }
+            producerDone.set(true);
+        });
+
+        CallbackInfo info = new CallbackInfo(null, 0);
+        int lastHandle = -1;
+        long delivered = 0;
+        producer.start();
+        while (!producerDone.get() || queue.size() > 0) {
+            if (congested.get() && !producerDone.get()) {
+                continue;
+            }
+            while (queue.poll(info)) {
+                Assert.assertEquals(lastHandle + 1, info.handle);
+                lastHandle = info.handle;
+                delivered++;
+            }
+        }
+        producer.join();
+
+        Assert.assertEquals(count, delivered);
+    }
+}
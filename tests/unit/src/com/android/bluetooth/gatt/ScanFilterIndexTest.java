@@ -0,0 +1,128 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.util.SparseIntArray;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final String ORIGINAL_ADDRESS = "00:01:02:03:04:06";
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final ParcelUuid OTHER_SERVICE_UUID =
+            ParcelUuid.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final int MANUFACTURER_ID = 0x00e0;
+
+    // Flags, complete list of 16-bit UUIDs (0x180d) and manufacturer data for 0x00e0.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0d, 0x18,
+            0x04, (byte) 0xff, (byte) 0xe0, 0x00, 0x01};
+
+    private ScanFilterIndex mIndex;
+    private ScanResult mResult;
+
+    @Before
+    public void setUp() {
+        mIndex = new ScanFilterIndex();
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        mResult = new ScanResult(device, ScanRecord.parseFromBytes(ADV_DATA), -60, 0);
+    }
+
+    @Test
+    public void testMatch_indexedFields() {
+        addClient(1, new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build());
+        addClient(2, new ScanFilter.Builder().setServiceUuid(OTHER_SERVICE_UUID).build());
+        addClient(3, new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID,
+                new byte[] {0x01}).build());
+        addClient(4, new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID,
+                new byte[] {0x02}).build());
+        addClient(5, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+
+        SparseIntArray matches = mIndex.match(mResult, null);
+
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(1));
+        Assert.assertEquals(ScanFilterIndex.NO_MATCH, matches.get(2));
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(3));
+        Assert.assertEquals(ScanFilterIndex.NO_MATCH, matches.get(4));
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(5));
+    }
+
+    @Test
+    public void testMatch_unfilteredAndUnindexedClients() {
+        addClient(1, (ScanFilter[]) null);
+        addClient(2, new ScanFilter.Builder().setDeviceName("name").build());
+        addClient(3, new ScanFilter.Builder().build());
+
+        SparseIntArray matches = mIndex.match(mResult, null);
+
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(1));
+        Assert.assertEquals(ScanFilterIndex.NO_MATCH, matches.get(2));
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(3));
+    }
+
+    @Test
+    public void testMatch_originalAddressFollowsFilterOrder() {
+        ScanFilter original = new ScanFilter.Builder().setDeviceAddress(ORIGINAL_ADDRESS).build();
+        ScanFilter service = new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build();
+        addClient(1, original, service);
+        addClient(2, service, original);
+
+        SparseIntArray matches = mIndex.match(mResult, ORIGINAL_ADDRESS);
+
+        Assert.assertEquals(ScanFilterIndex.MATCH_ORIGINAL_ADDRESS, matches.get(1));
+        Assert.assertEquals(ScanFilterIndex.MATCH_PSEUDO_ADDRESS, matches.get(2));
+    }
+
+    @Test
+    public void testRemoveScanClient() {
+        ScanClient client = addClient(1,
+                new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build());
+        Assert.assertTrue(mIndex.isIndexed(client));
+
+        mIndex.removeScanClient(1);
+
+        Assert.assertFalse(mIndex.isIndexed(client));
+        Assert.assertEquals(0, mIndex.match(mResult, null).size());
+    }
+
+    @Test
+    public void testIsIndexed_changedFilters() {
+        ScanClient client = addClient(1,
+                new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build());
+
+        client.filters = new ArrayList<>(client.filters);
+
+        Assert.assertFalse(mIndex.isIndexed(client));
+    }
+
+    private ScanClient addClient(int scannerId, ScanFilter... filters) {
+        List<ScanFilter> filterList = filters == null ? null : Arrays.asList(filters);
+        ScanClient client = new ScanClient(scannerId, new ScanSettings.Builder().build(),
+                filterList);
+        mIndex.addScanClient(client);
+        return client;
+    }
+}
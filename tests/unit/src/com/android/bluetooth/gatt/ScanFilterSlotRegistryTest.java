@@ -0,0 +1,95 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterSlotRegistry}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterSlotRegistryTest {
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+    private ScanFilterSlotRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new ScanFilterSlotRegistry();
+        mRegistry.init(3, 6);
+    }
+
+    @Test
+    public void testIdenticalFiltersShareSlot() {
+        ScanFilterSlotRegistry.Slot first = mRegistry.acquire(1, serviceKey(0));
+        ScanFilterSlotRegistry.Slot second = mRegistry.acquire(2, serviceKey(0));
+
+        Assert.assertTrue(first.isNew());
+        Assert.assertSame(first, second);
+        Assert.assertFalse(second.isNew());
+        Assert.assertEquals(2, mRegistry.getNumOfFreeSlots());
+    }
+
+    @Test
+    public void testDifferentParametersUseSeparateSlots() {
+        ScanFilterSlotRegistry.Slot first = mRegistry.acquire(1, serviceKey(0));
+        ScanFilterSlotRegistry.Slot second = mRegistry.acquire(2, serviceKey(2));
+
+        Assert.assertNotEquals(first.filterIndex, second.filterIndex);
+    }
+
+    @Test
+    public void testUnsharedKeyAlwaysAllocates() {
+        ScanFilterSlotRegistry.Slot first = mRegistry.acquire(1, null);
+        ScanFilterSlotRegistry.Slot second = mRegistry.acquire(2, null);
+
+        Assert.assertNotEquals(first.filterIndex, second.filterIndex);
+        Assert.assertEquals(1, mRegistry.getNumOfFreeSlots());
+    }
+
+    @Test
+    public void testReleaseFreesSlotWithLastReference() {
+        int filterIndex = mRegistry.acquire(1, serviceKey(0)).filterIndex;
+        mRegistry.acquire(2, serviceKey(0));
+
+        Assert.assertTrue(mRegistry.release(1).isEmpty());
+        Assert.assertEquals(Arrays.asList(filterIndex), mRegistry.release(2));
+        Assert.assertEquals(3, mRegistry.getNumOfFreeSlots());
+        Assert.assertFalse(mRegistry.hasSlots(2));
+    }
+
+    @Test
+    public void testGetNumOfSlotsNeeded() {
+        mRegistry.acquire(1, serviceKey(0));
+        List<ScanFilterSlotRegistry.Key> keys =
+                Arrays.asList(serviceKey(0), serviceKey(2), serviceKey(2), null);
+
+        Assert.assertEquals(2, mRegistry.getNumOfSlotsNeeded(keys));
+    }
+
+    @Test
+    public void testExhaustion() {
+        for (int scannerId = 1; scannerId <= 3; scannerId++) {
+            Assert.assertNotNull(mRegistry.acquire(scannerId, null));
+        }
+        Assert.assertNull(mRegistry.acquire(4, null));
+        Assert.assertNull(mRegistry.acquire(4, serviceKey(0)));
+    }
+
+    private static ScanFilterSlotRegistry.Key serviceKey(int deliveryMode) {
+        ScanFilter filter = new ScanFilter.Builder().setServiceUuid(SERVICE_UUID).build();
+        return new ScanFilterSlotRegistry.Key(filter, deliveryMode, 1);
+    }
+}
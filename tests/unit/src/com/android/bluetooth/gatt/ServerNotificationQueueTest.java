@@ -0,0 +1,123 @@
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ServerNotificationQueue}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ServerNotificationQueueTest {
+    private static final int SERVER_IF = 1;
+    private static final int CONN_ID = 5;
+    private static final long SEND_TIMEOUT_MS = 1000;
+
+    private final List<Integer> mSentHandles = new ArrayList<>();
+    private boolean mStackAccepts = true;
+    private ServerNotificationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new ServerNotificationQueue((serverIf, connId, handle, confirm, value) -> {
+            if (!mStackAccepts) {
+                return false;
+            }
+            mSentHandles.add(handle);
+            return true;
+        }, 2, 3, SEND_TIMEOUT_MS);
+    }
+
+    @Test
+    public void testInFlightLimit() {
+        for (int handle = 1; handle <= 4; handle++) {
+            Assert.assertTrue(mQueue.offer(SERVER_IF, CONN_ID, handle, false, new byte[0], 0));
+        }
+        Assert.assertEquals(List.of(1, 2), mSentHandles);
+        Assert.assertEquals(2, mQueue.getQueueDepth(CONN_ID));
+
+        mQueue.onSent(CONN_ID, 0);
+
+        Assert.assertEquals(List.of(1, 2, 3), mSentHandles);
+        Assert.assertEquals(1, mQueue.getQueueDepth(CONN_ID));
+    }
+
+    @Test
+    public void testCongestionPausesSending() {
+        mQueue.setCongested(CONN_ID, true, 0);
+        mQueue.offer(SERVER_IF, CONN_ID, 1, false, new byte[0], 0);
+        Assert.assertTrue(mSentHandles.isEmpty());
+
+        mQueue.setCongested(CONN_ID, false, 0);
+
+        Assert.assertEquals(List.of(1), mSentHandles);
+    }
+
+    @Test
+    public void testFullQueueDrops() {
+        mQueue.setCongested(CONN_ID, true, 0);
+        for (int handle = 1; handle <= 3; handle++) {
+            Assert.assertTrue(mQueue.offer(SERVER_IF, CONN_ID, handle, false, new byte[0], 0));
+        }
+
+        Assert.assertFalse(mQueue.offer(SERVER_IF, CONN_ID, 4, false, new byte[0], 0));
+        Assert.assertEquals(3, mQueue.remove(CONN_ID));
+        Assert.assertEquals(0, mQueue.getQueueDepth(CONN_ID));
+    }
+
+    @Test
+    public void testOfferAllKeepsOrderAndDropsTail() {
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            values.add(new byte[] {(byte) i});
+        }
+
+        // Two values in flight and three queued, the last one does not fit
+        Assert.assertEquals(5, mQueue.offerAll(SERVER_IF, CONN_ID, 7, false, values, 0));
+        Assert.assertEquals(List.of(7, 7), mSentHandles);
+        Assert.assertEquals(3, mQueue.getQueueDepth(CONN_ID));
+
+        StringBuilder sb = new StringBuilder();
+        mQueue.dump(sb);
+        Assert.assertTrue(sb.toString().contains("dropped: 1"));
+    }
+
+    @Test
+    public void testRejectedSendReleasesSlot() {
+        mStackAccepts = false;
+        Assert.assertTrue(mQueue.offer(SERVER_IF, CONN_ID, 1, false, new byte[0], 0));
+        Assert.assertTrue(mQueue.offer(SERVER_IF, CONN_ID, 2, false, new byte[0], 0));
+
+        mStackAccepts = true;
+        for (int handle = 3; handle <= 4; handle++) {
+            Assert.assertTrue(mQueue.offer(SERVER_IF, CONN_ID, handle, false, new byte[0], 0));
+        }
+
+        Assert.assertEquals(List.of(3, 4), mSentHandles);
+        Assert.assertEquals(0, mQueue.getQueueDepth(CONN_ID));
+    }
+
+    @Test
+    public void testSendTimeoutReleasesSlots() {
+        for (int handle = 1; handle <= 3; handle++) {
+            mQueue.offer(SERVER_IF, CONN_ID, handle, false, new byte[0], 0);
+        }
+        Assert.assertEquals(List.of(1, 2), mSentHandles);
+
+        // No completion for the values in flight
+        mQueue.offer(SERVER_IF, CONN_ID, 4, false, new byte[0], SEND_TIMEOUT_MS - 1);
+        Assert.assertEquals(List.of(1, 2), mSentHandles);
+
+        mQueue.offer(SERVER_IF, CONN_ID, 5, false, new byte[0], SEND_TIMEOUT_MS);
+        Assert.assertEquals(List.of(1, 2, 3, 4), mSentHandles);
+        Assert.assertEquals(1, mQueue.getQueueDepth(CONN_ID));
+    }
+}
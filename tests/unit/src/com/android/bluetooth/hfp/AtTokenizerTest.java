@@ -0,0 +1,116 @@
+package com.android.bluetooth.hfp;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link AtTokenizer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AtTokenizerTest {
+    private final AtTokenizer mTokenizer = new AtTokenizer();
+
+    @Test
+    public void testVendorSpecificArguments() {
+        // AT+XEVENT as sent by a car kit reporting its battery
+        mTokenizer.reset("+XEVENT=BATTERY,6,11,461,0", 8);
+
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertFalse(mTokenizer.isInt());
+        Assert.assertEquals("BATTERY", mTokenizer.stringValue());
+        assertNextInt(6);
+        assertNextInt(11);
+        assertNextInt(461);
+        assertNextInt(0);
+        Assert.assertFalse(mTokenizer.next());
+    }
+
+    @Test
+    public void testQuotedCommaIsPartOfArgument() {
+        mTokenizer.reset("\"a,b\",-12", 0);
+
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertEquals("\"a,b\"", mTokenizer.stringValue());
+        assertNextInt(-12);
+        Assert.assertFalse(mTokenizer.next());
+    }
+
+    @Test
+    public void testEmptyArguments() {
+        mTokenizer.reset("1,,2,", 0);
+
+        assertNextInt(1);
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertTrue(mTokenizer.isEmpty());
+        Assert.assertFalse(mTokenizer.isInt());
+        assertNextInt(2);
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertTrue(mTokenizer.isEmpty());
+        Assert.assertFalse(mTokenizer.next());
+    }
+
+    @Test
+    public void testIntegersMatchParseInt() {
+        String[] values = {"0", "+7", "-2147483648", "2147483647", "2147483648", "-", "1a", " 1"};
+        for (String value : values) {
+            mTokenizer.reset(value, 0);
+            Assert.assertTrue(mTokenizer.next());
+            Integer expected;
+            try {
+                expected = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                expected = null;
+            }
+            Assert.assertEquals(value, expected != null, mTokenizer.isInt());
+            if (expected != null) {
+                Assert.assertEquals(expected.intValue(), mTokenizer.intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testPhonebookArguments() {
+        mTokenizer.resetAfterEquals("=1, 10;");
+        assertNextInt(1);
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertFalse(mTokenizer.isInt());
+        mTokenizer.trim();
+        Assert.assertTrue(mTokenizer.isInt());
+        Assert.assertEquals(10, mTokenizer.intValue());
+
+        mTokenizer.resetAfterEquals("=\"MC\"");
+        Assert.assertTrue(mTokenizer.next());
+        mTokenizer.unquote();
+        Assert.assertEquals("MC", mTokenizer.stringValue());
+
+        mTokenizer.resetAfterEquals("?");
+        Assert.assertFalse(mTokenizer.next());
+    }
+
+    @Test
+    public void testCommandType() {
+        Assert.assertEquals(AtPhonebook.TYPE_READ, AtTokenizer.getCommandType("+CPBS?"));
+        Assert.assertEquals(AtPhonebook.TYPE_TEST, AtTokenizer.getCommandType("+CPBR=?"));
+        Assert.assertEquals(AtPhonebook.TYPE_SET, AtTokenizer.getCommandType("+CPBR=1,10"));
+        Assert.assertEquals(AtPhonebook.TYPE_SET, AtTokenizer.getCommandType(" +CPBR= \r"));
+        Assert.assertEquals(AtPhonebook.TYPE_UNKNOWN, AtTokenizer.getCommandType("+CPBR"));
+        Assert.assertEquals(AtPhonebook.TYPE_UNKNOWN, AtTokenizer.getCommandType("+CPBRX"));
+    }
+
+    @Test
+    public void testNormalize() {
+        Assert.assertEquals("+CSCS=\"utf-8\"", AtTokenizer.normalize("+cscs = \"utf-8\""));
+        Assert.assertEquals("+CPBS=\"mc\"", AtTokenizer.normalize("+cpbs=\"mc"));
+    }
+
+    private void assertNextInt(int expected) {
+        Assert.assertTrue(mTokenizer.next());
+        Assert.assertTrue(mTokenizer.isInt());
+        Assert.assertEquals(expected, mTokenizer.intValue());
+    }
+}
@@ -0,0 +1,138 @@
+package com.android.bluetooth.hfp;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test cases for {@link CallerIdResolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CallerIdResolverTest {
+    // Size of a full call log phonebook read
+    private static final int NUM_CALLS = 500;
+
+    private final Map<String, String> mContacts = new HashMap<>();
+    // Numbers only matched by the phone lookup, e.g. written without the country code
+    private final Map<String, String> mLookupContacts = new HashMap<>();
+    private int mBatchQueries = 0;
+    private int mLookupQueries = 0;
+    private CallerIdResolver mResolver;
+
+    @Before
+    public void setUp() {
+        MockContentProvider contactsProvider = new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+                    CancellationSignal cancellationSignal) {
+                if (uri.equals(Phone.CONTENT_URI)) {
+                    mBatchQueries++;
+                    MatrixCursor cursor = new MatrixCursor(projection);
+                    Set<String> found = new HashSet<>();
+                    for (String number : queryArgs.getStringArray(
+                            ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS)) {
+                        String name = mContacts.get(number);
+                        // Each number is passed twice, answer it once
+                        if (name != null && found.add(number)) {
+                            cursor.addRow(new Object[] {number, number, name});
+                        }
+                    }
+                    return cursor;
+                }
+                mLookupQueries++;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                String name = mContacts.get(uri.getLastPathSegment());
+                if (name == null) {
+                    name = mLookupContacts.get(uri.getLastPathSegment());
+                }
+                if (name != null) {
+                    cursor.addRow(new Object[] {name});
+                }
+                return cursor;
+            }
+        };
+        MockContentResolver contentResolver = new MockContentResolver();
+        contentResolver.addProvider(ContactsContract.AUTHORITY, contactsProvider);
+        mResolver = new CallerIdResolver(contentResolver);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.cleanup();
+    }
+
+    @Test
+    public void testCallLogIsResolvedInBatches() {
+        List<String> numbers = new ArrayList<>();
+        for (int i = 0; i < NUM_CALLS; i++) {
+            String number = "+1555" + (1000000 + i);
+            numbers.add(number);
+            // One caller out of five is not a contact
+            if (i % 5 != 0) {
+                mContacts.put(number, "Contact " + i);
+            }
+        }
+
+        Map<String, String> names = mResolver.resolve(numbers);
+
+        Assert.assertEquals(NUM_CALLS, names.size());
+        Assert.assertEquals("Contact 1", names.get(numbers.get(1)));
+        Assert.assertEquals("", names.get(numbers.get(0)));
+        // Only the unknown numbers are looked up one by one
+        Assert.assertEquals(5, mBatchQueries);
+        Assert.assertEquals(NUM_CALLS / 5, mLookupQueries);
+
+        // The next read of the phonebook is served from the cache
+        names = mResolver.resolve(numbers);
+        Assert.assertEquals("Contact 1", names.get(numbers.get(1)));
+        Assert.assertEquals(5, mBatchQueries);
+        Assert.assertEquals(NUM_CALLS / 5, mLookupQueries);
+        Assert.assertEquals(NUM_CALLS, mResolver.getCacheHitCount());
+    }
+
+    @Test
+    public void testLookupMatchesNumbersMissedByBatch() {
+        mLookupContacts.put("5551234", "Alice");
+
+        Map<String, String> names = mResolver.resolve(List.of("5551234"));
+
+        Assert.assertEquals("Alice", names.get("5551234"));
+        Assert.assertEquals(1, mLookupQueries);
+    }
+
+    @Test
+    public void testInvalidateForgetsNames() {
+        mResolver.resolve(List.of("5551234"));
+        Assert.assertEquals(1, mLookupQueries);
+
+        mContacts.put("5551234", "Alice");
+        mResolver.invalidate();
+
+        Assert.assertEquals("Alice", mResolver.resolve(List.of("5551234")).get("5551234"));
+        Assert.assertEquals(2, mBatchQueries);
+    }
+}
@@ -0,0 +1,90 @@
+package com.android.bluetooth.hfp;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link HeadsetIndicatorAggregator}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HeadsetIndicatorAggregatorTest {
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+    private static final HeadsetAgIndicatorEnableState ALL_ENABLED =
+            new HeadsetAgIndicatorEnableState(true, true, true, true);
+    private static final HeadsetAgIndicatorEnableState SIGNAL_DISABLED =
+            new HeadsetAgIndicatorEnableState(true, true, false, true);
+
+    private final HeadsetIndicatorAggregator mAggregator = new HeadsetIndicatorAggregator();
+
+    @Test
+    public void testSignalFlapsAreCoalesced() {
+        Assert.assertEquals(HeadsetIndicatorAggregator.SEND_NOW,
+                mAggregator.update(state(3), ALL_ENABLED, 0, MIN_INTERVAL_MILLIS));
+
+        Assert.assertEquals(MIN_INTERVAL_MILLIS - 100,
+                mAggregator.update(state(4), ALL_ENABLED, 100, MIN_INTERVAL_MILLIS));
+        Assert.assertEquals(HeadsetIndicatorAggregator.NOTHING_TO_SEND,
+                mAggregator.update(state(2), ALL_ENABLED, 200, MIN_INTERVAL_MILLIS));
+        HeadsetDeviceState latest = state(5);
+        Assert.assertEquals(HeadsetIndicatorAggregator.NOTHING_TO_SEND,
+                mAggregator.update(latest, ALL_ENABLED, 300, MIN_INTERVAL_MILLIS));
+
+        // Only the latest state is sent
+        Assert.assertSame(latest, mAggregator.flush(ALL_ENABLED, MIN_INTERVAL_MILLIS));
+        Assert.assertNull(mAggregator.flush(ALL_ENABLED, MIN_INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void testRevertedStateIsNotSent() {
+        mAggregator.update(state(3), ALL_ENABLED, 0, MIN_INTERVAL_MILLIS);
+        mAggregator.update(state(4), ALL_ENABLED, 100, MIN_INTERVAL_MILLIS);
+        mAggregator.update(state(3), ALL_ENABLED, 200, MIN_INTERVAL_MILLIS);
+
+        Assert.assertNull(mAggregator.flush(ALL_ENABLED, MIN_INTERVAL_MILLIS));
+
+        StringBuilder sb = new StringBuilder();
+        mAggregator.dump(sb);
+        Assert.assertTrue(sb.toString().contains("suppressed=1"));
+    }
+
+    @Test
+    public void testRevertAfterCindReadIsSent() {
+        mAggregator.update(state(3), ALL_ENABLED, 0, MIN_INTERVAL_MILLIS);
+        mAggregator.update(state(4), ALL_ENABLED, 100, MIN_INTERVAL_MILLIS);
+        // The remote device reads the indicators and gets 4
+        mAggregator.onReported(state(4));
+        HeadsetDeviceState latest = state(3);
+        mAggregator.update(latest, ALL_ENABLED, 200, MIN_INTERVAL_MILLIS);
+
+        Assert.assertSame(latest, mAggregator.flush(ALL_ENABLED, MIN_INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void testDisabledIndicatorIsSentWhenEnabled() {
+        mAggregator.update(state(3), SIGNAL_DISABLED, 0, MIN_INTERVAL_MILLIS);
+
+        HeadsetDeviceState latest = state(1);
+        Assert.assertEquals(HeadsetIndicatorAggregator.NOTHING_TO_SEND,
+                mAggregator.update(latest, SIGNAL_DISABLED, 5000, MIN_INTERVAL_MILLIS));
+
+        Assert.assertSame(latest, mAggregator.flush(ALL_ENABLED, 6000));
+    }
+
+    @Test
+    public void testZeroIntervalSendsEveryChange() {
+        Assert.assertEquals(HeadsetIndicatorAggregator.SEND_NOW,
+                mAggregator.update(state(3), ALL_ENABLED, 0, 0));
+        Assert.assertEquals(HeadsetIndicatorAggregator.SEND_NOW,
+                mAggregator.update(state(4), ALL_ENABLED, 0, 0));
+    }
+
+    private static HeadsetDeviceState state(int signal) {
+        return new HeadsetDeviceState(HeadsetHalConstants.NETWORK_STATE_AVAILABLE,
+                HeadsetHalConstants.SERVICE_TYPE_HOME, signal, 5);
+    }
+}